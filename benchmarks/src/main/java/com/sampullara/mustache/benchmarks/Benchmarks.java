@@ -0,0 +1,22 @@
+package com.sampullara.mustache.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler so that allocation rates are always reported.
+ * Takes the same arguments as the JMH runner, for example:
+ * <pre>
+ *   java -jar benchmarks/target/benchmarks.jar ExecuteBenchmark -p template=complex.html
+ * </pre>
+ */
+public class Benchmarks {
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build()).run();
+  }
+}
@@ -0,0 +1,88 @@
+package com.sampullara.mustache.benchmarks;
+
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.util.FutureWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts many parallel renders at once whose sections block on a slow backend, comparing the
+ * bounded MustacheExecutor with a thread per task (virtual threads on JVMs that have them).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrencyBenchmark {
+
+  private static final String TEMPLATE = "<ul>{{#items}}<li>{{slow}}</li>{{/items}}</ul>";
+
+  @Param({"1000", "10000"})
+  public int renders;
+
+  @Param({"pool", "perTask"})
+  public String executor;
+
+  private Mustache mustache;
+
+  @Setup(Level.Trial)
+  public void setup() throws MustacheException {
+    if (executor.equals("pool")) {
+      FutureWriter.setParallel();
+    } else {
+      FutureWriter.setParallelPerTask();
+    }
+    mustache = Fixtures.builder("interpreted").parse(TEMPLATE, "backend.html");
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    FutureWriter.setParallel(null);
+  }
+
+  @Benchmark
+  public int render() throws MustacheException, IOException {
+    FutureWriter[] writers = new FutureWriter[renders];
+    Fixtures.CountingWriter[] outputs = new Fixtures.CountingWriter[renders];
+    for (int i = 0; i < renders; i++) {
+      outputs[i] = new Fixtures.CountingWriter();
+      writers[i] = new FutureWriter(outputs[i]);
+      mustache.execute(writers[i], new com.sampullara.mustache.Scope(new Backend()));
+    }
+    int total = 0;
+    for (int i = 0; i < renders; i++) {
+      writers[i].flush();
+      total += outputs[i].count;
+    }
+    return total;
+  }
+
+  public static class Backend {
+    List<Integer> items = Arrays.asList(1, 2);
+
+    String slow() throws InterruptedException {
+      // A call to a backend service
+      Thread.sleep(1);
+      return "ok";
+    }
+  }
+}
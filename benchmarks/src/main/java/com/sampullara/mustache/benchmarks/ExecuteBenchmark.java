@@ -0,0 +1,64 @@
+package com.sampullara.mustache.benchmarks;
+
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.util.FutureWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes the fixtures serially and with the parallel FutureWriter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ExecuteBenchmark {
+
+  @Param({"simple.html", "complex.html", "template_partial.html", "sub.html", "subsub.html"})
+  public String template;
+
+  @Param({"interpreted", "inlined", "compiled"})
+  public String engine;
+
+  @Param({"serial", "parallel"})
+  public String mode;
+
+  private Mustache mustache;
+
+  @Setup(Level.Trial)
+  public void setup() throws MustacheException {
+    if (mode.equals("parallel")) {
+      FutureWriter.setParallel();
+    } else {
+      FutureWriter.setParallel(null);
+    }
+    mustache = Fixtures.builder(engine).parseFile(template);
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    FutureWriter.setParallel(null);
+  }
+
+  @Benchmark
+  public int execute() throws MustacheException, IOException {
+    return Fixtures.execute(mustache, Fixtures.scope(template));
+  }
+}
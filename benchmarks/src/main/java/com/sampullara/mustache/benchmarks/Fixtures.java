@@ -0,0 +1,245 @@
+package com.sampullara.mustache.benchmarks;
+
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheBuilder;
+import com.sampullara.mustache.MustacheContext;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.mustache.Scope;
+import com.sampullara.mustache.compiler.CompilingMustacheBuilder;
+import com.sampullara.util.FutureWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The templates and contexts shared by the benchmarks. Templates are read from the test
+ * resources of the project so run the benchmarks from the project or module directory.
+ */
+public class Fixtures {
+
+  // The shared templates and the extension templates only used by the builder tests
+  private static final File[] ROOTS = {
+          root("src/test/resources", "complex.html"),
+          root("builder/src/test/resources", "super.html")
+  };
+
+  private static File root(String path, String probe) {
+    File file = new File(path);
+    return new File(file, probe).exists() ? file : new File("..", path);
+  }
+
+  /**
+   * Looks for templates in all of the test resource directories.
+   */
+  public static final MustacheContext CONTEXT = new MustacheContext() {
+    @Override
+    public BufferedReader getReader(String name) throws MustacheException {
+      for (File root : ROOTS) {
+        File file = new File(root, name);
+        if (file.exists()) {
+          try {
+            return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+          } catch (FileNotFoundException e) {
+            throw new MustacheException("Failed to find path: " + name, e);
+          } catch (UnsupportedEncodingException e) {
+            throw new MustacheException("Failed to read path: " + name, e);
+          }
+        }
+      }
+      throw new MustacheException("Failed to find path: " + name);
+    }
+  };
+
+  public static MustacheBuilder builder(String engine) {
+    if (engine.equals("compiled")) {
+      return new CompilingMustacheBuilder(CONTEXT);
+    }
+    MustacheBuilder builder = new MustacheBuilder(CONTEXT);
+    builder.setInlinePartials(engine.equals("inlined"));
+    return builder;
+  }
+
+  /**
+   * The scope each benchmark template expects.
+   */
+  public static Scope scope(String template) {
+    if (template.equals("complex.html")) {
+      return new Scope(new ComplexObject());
+    } else if (template.equals("simple.html")) {
+      return new Scope(new SimpleObject());
+    } else if (template.equals("template_partial.html")) {
+      Scope scope = new Scope();
+      scope.put("title", "Welcome");
+      scope.put("template_partial_2", new PartialObject());
+      return scope;
+    } else if (template.equals("sub.html") || template.equals("subsub.html")) {
+      Scope scope = new Scope();
+      scope.put("name", "Sam");
+      scope.put("randomid", "asdlkfj");
+      return scope;
+    }
+    throw new IllegalArgumentException("No scope for " + template);
+  }
+
+  public static int execute(Mustache m, Scope scope) throws MustacheException, IOException {
+    CountingWriter cw = new CountingWriter();
+    FutureWriter fw = new FutureWriter(cw);
+    m.execute(fw, scope);
+    fw.flush();
+    return cw.count;
+  }
+
+  public static class SimpleObject {
+    String name = "Chris";
+    int value = 10000;
+
+    int taxed_value() {
+      return (int) (this.value - (this.value * 0.4));
+    }
+
+    boolean in_ca = true;
+  }
+
+  // The same values as SimpleObject from public members, which get generated accessors
+  public static class PublicObject {
+    public String name = "Chris";
+    public int value = 10000;
+
+    public int taxed_value() {
+      return (int) (this.value - (this.value * 0.4));
+    }
+
+    public boolean in_ca = true;
+  }
+
+  public static class PartialObject {
+    String again = "Goodbye";
+  }
+
+  public static class ComplexObject {
+    String header = "Colors";
+    List<Color> item = Arrays.asList(
+            new Color("red", true, "#Red"),
+            new Color("green", false, "#Green"),
+            new Color("blue", false, "#Blue")
+    );
+
+    boolean link(Scope s) {
+      return !((Boolean) s.get("current"));
+    }
+
+    boolean list(Scope s) {
+      return ((List) s.get("item")).size() != 0;
+    }
+
+    boolean empty(Scope s) {
+      return ((List) s.get("item")).size() == 0;
+    }
+
+    public static class Color {
+      Color(String name, boolean current, String url) {
+        this.name = name;
+        this.current = current;
+        this.url = url;
+      }
+
+      String name;
+      boolean current;
+      String url;
+    }
+  }
+
+  /**
+   * complex.html written by hand, the baseline that the engines are measured against.
+   */
+  public static Mustache handcoded() {
+    final ComplexObject co = new ComplexObject();
+    return new Mustache() {
+      Mustache item = new Mustache() {
+        @Override
+        public void execute(FutureWriter writer, Scope ctx) throws MustacheException {
+          ComplexObject.Color color = (ComplexObject.Color) ctx.getParent();
+          try {
+            if (color.current) {
+              writer.write("      <li><strong>");
+              writer.write(color.name);
+              writer.write("</strong></li>\n");
+            }
+            if (co.link(ctx)) {
+              writer.write("      <li><a href=\"");
+              writer.write(color.url);
+              writer.write(">");
+              writer.write(color.name);
+              writer.write("</a></li>\n");
+            }
+          } catch (IOException e) {
+            throw new MustacheException(e);
+          }
+        }
+      };
+
+      @Override
+      public void execute(FutureWriter writer, Scope ctx) throws MustacheException {
+        try {
+          writer.write("<h1>");
+          writer.write(co.header);
+          writer.write("</h1>\n");
+          Scope s = new Scope(co);
+          if (co.list(s)) {
+            writer.write("  <ul>\n");
+            for (ComplexObject.Color color : co.item) {
+              item.execute(writer, new Scope(color));
+            }
+            writer.write("  </ul>\n");
+          }
+          if (co.empty(s)) {
+            writer.write("  <p>The list is empty.</p>\n");
+          }
+          if (!co.empty(s)) {
+            writer.write("  <p>The list is not empty.</p>\n");
+          }
+        } catch (IOException e) {
+          throw new MustacheException(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Discards the output but counts it so that it can't be optimized away.
+   */
+  public static class CountingWriter extends Writer {
+    public int count;
+
+    @Override
+    public void write(char[] chars, int off, int len) throws IOException {
+      count += len;
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+      count += str.length();
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+}
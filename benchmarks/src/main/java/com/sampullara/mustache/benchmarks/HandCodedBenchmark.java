@@ -0,0 +1,58 @@
+package com.sampullara.mustache.benchmarks;
+
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.util.FutureWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hand coded version of complex.html, the baseline that the engines should approach.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HandCodedBenchmark {
+
+  @Param({"serial", "parallel"})
+  public String mode;
+
+  private Mustache handcoded;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    if (mode.equals("parallel")) {
+      FutureWriter.setParallel();
+    } else {
+      FutureWriter.setParallel(null);
+    }
+    handcoded = Fixtures.handcoded();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    FutureWriter.setParallel(null);
+  }
+
+  @Benchmark
+  public int complex() throws MustacheException, IOException {
+    return Fixtures.execute(handcoded, Fixtures.scope("complex.html"));
+  }
+}
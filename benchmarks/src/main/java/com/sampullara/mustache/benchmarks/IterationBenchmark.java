@@ -0,0 +1,90 @@
+package com.sampullara.mustache.benchmarks;
+
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.util.FutureWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a table of rows serially, run with -prof gc and compare gc.alloc.rate.norm to see
+ * what each row allocates, and in parallel where the rows are split into chunks of work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IterationBenchmark {
+
+  private static final String TABLE = "<table>{{#rows}}<tr><td>{{id}}</td><td>{{name}}</td><td>{{.}}</td></tr>{{/rows}}</table>";
+
+  @Param({"1000", "5000"})
+  public int rows;
+
+  @Param({"serial", "parallel"})
+  public String mode;
+
+  @Param({"interpreted", "compiled"})
+  public String engine;
+
+  private Mustache mustache;
+  private com.sampullara.mustache.Scope scope;
+
+  @Setup(Level.Trial)
+  public void setup() throws MustacheException {
+    if (mode.equals("parallel")) {
+      FutureWriter.setParallel();
+    } else {
+      FutureWriter.setParallel(null);
+    }
+    mustache = Fixtures.builder(engine).parse(TABLE, "table.html");
+    List<Row> list = new ArrayList<Row>(rows);
+    for (int i = 0; i < rows; i++) {
+      list.add(new Row(i, "row" + i));
+    }
+    scope = new com.sampullara.mustache.Scope();
+    scope.put("rows", list);
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    FutureWriter.setParallel(null);
+  }
+
+  @Benchmark
+  public int render() throws MustacheException, IOException {
+    return Fixtures.execute(mustache, scope);
+  }
+
+  public static class Row {
+    Row(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    int id;
+    String name;
+
+    public String toString() {
+      return name;
+    }
+  }
+}
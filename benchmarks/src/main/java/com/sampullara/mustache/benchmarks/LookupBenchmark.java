@@ -0,0 +1,61 @@
+package com.sampullara.mustache.benchmarks;
+
+import com.sampullara.mustache.DefaultObjectHandler;
+import com.sampullara.mustache.ObjectHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variable lookup through the DefaultObjectHandler from one thread and from every core at
+ * once. Throughput is reported per thread so the two should be about the same if lookups
+ * scale with the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LookupBenchmark {
+
+  private final ObjectHandler handler = new DefaultObjectHandler();
+  private final Fixtures.SimpleObject simple = new Fixtures.SimpleObject();
+  private final com.sampullara.mustache.Scope scope = new com.sampullara.mustache.Scope(simple);
+  private final Fixtures.PublicObject publicObject = new Fixtures.PublicObject();
+
+  @Benchmark
+  @Threads(1)
+  public Object uncontended() {
+    return lookup();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object contended() {
+    return lookup();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object generated() {
+    handler.handleObject(publicObject, scope, "name");
+    handler.handleObject(publicObject, scope, "taxed_value");
+    return handler.handleObject(publicObject, scope, "missing");
+  }
+
+  private Object lookup() {
+    handler.handleObject(simple, scope, "name");
+    handler.handleObject(simple, scope, "taxed_value");
+    return handler.handleObject(simple, scope, "missing");
+  }
+}
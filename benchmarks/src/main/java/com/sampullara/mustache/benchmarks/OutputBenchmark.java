@@ -0,0 +1,97 @@
+package com.sampullara.mustache.benchmarks;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheBuilder;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.util.FutureWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders to a byte stream either through an OutputStreamWriter, encoding all of the output,
+ * or through Mustache.execute(OutputStream, ...) which writes static text pre-encoded. The
+ * large template is 100 copies of complex.html.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class OutputBenchmark {
+
+  @Param({"complex.html", "large"})
+  public String template;
+
+  @Param({"writer", "stream"})
+  public String output;
+
+  @Param({"interpreted", "compiled"})
+  public String engine;
+
+  private Mustache mustache;
+  private final CountingOutputStream os = new CountingOutputStream();
+
+  @Setup
+  public void setup() throws MustacheException, IOException {
+    FutureWriter.setParallel(null);
+    MustacheBuilder builder = Fixtures.builder(engine);
+    if (template.equals("large")) {
+      String complex = CharStreams.toString(Fixtures.CONTEXT.getReader("complex.html"));
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+        sb.append(complex);
+      }
+      mustache = builder.parse(sb.toString(), template);
+    } else {
+      mustache = builder.parseFile(template);
+    }
+  }
+
+  @Benchmark
+  public int render() throws MustacheException, IOException {
+    os.count = 0;
+    com.sampullara.mustache.Scope scope = Fixtures.scope("complex.html");
+    if (output.equals("stream")) {
+      mustache.execute(os, scope);
+    } else {
+      Writer writer = new OutputStreamWriter(os, Charsets.UTF_8);
+      mustache.execute(writer, scope);
+    }
+    return os.count;
+  }
+
+  /**
+   * Discards the output but counts it so that it can't be optimized away.
+   */
+  public static class CountingOutputStream extends OutputStream {
+    public int count;
+
+    @Override
+    public void write(int b) throws IOException {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+      count += len;
+    }
+  }
+}
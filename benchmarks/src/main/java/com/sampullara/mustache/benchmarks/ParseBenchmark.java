@@ -0,0 +1,61 @@
+package com.sampullara.mustache.benchmarks;
+
+import com.google.common.io.CharStreams;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheBuilder;
+import com.sampullara.mustache.MustacheException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to read and compile a template. Partials are compiled when they are first
+ * executed so they aren't included. The large template is 100 copies of complex.html held in
+ * memory to measure the scanner on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParseBenchmark {
+
+  @Param({"simple.html", "complex.html", "template_partial.html", "sub.html", "subsub.html", "large"})
+  public String template;
+
+  @Param({"interpreted", "compiled"})
+  public String engine;
+
+  private MustacheBuilder builder;
+  private String large;
+
+  @Setup
+  public void setup() throws MustacheException, IOException {
+    builder = Fixtures.builder(engine);
+    if (template.equals("large")) {
+      String complex = CharStreams.toString(Fixtures.CONTEXT.getReader("complex.html"));
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+        sb.append(complex);
+      }
+      large = sb.toString();
+    }
+  }
+
+  @Benchmark
+  public Mustache parse() throws MustacheException {
+    return large == null ? builder.parseFile(template) : builder.parse(large, template);
+  }
+}
@@ -0,0 +1,11 @@
+package com.sampullara.mustache;
+
+import java.util.List;
+
+/**
+ * Implemented by code factories that support {{#cache name key...}} sections. With other code
+ * factories such a section is an ordinary section.
+ */
+public interface CacheCodeFactory {
+  Code cache(Mustache m, String key, List<Code> codes, String file, int line);
+}
@@ -0,0 +1,162 @@
+package com.sampullara.mustache;
+
+import com.google.common.collect.MapEvictionListener;
+import com.google.common.collect.MapMaker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rendered output of {{#cache name key...}} sections. Fragments are found by the section
+ * they were rendered by and their key, the name followed by the values of the rest of the key
+ * in the scope. Fragments are evicted when there are too many of them and, optionally, when
+ * they are too old.
+ */
+public class FragmentCache {
+  private final ConcurrentMap<Key, String> fragments;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  // Changed by every invalidation so that fragments rendered before one aren't cached after it
+  private final AtomicLong generation = new AtomicLong();
+
+  public FragmentCache() {
+    this(1000, 0, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param maximumSize the most fragments that are kept
+   * @param ttl         how long a fragment is kept after it is rendered, zero keeps it until
+   *                    it is evicted or invalidated
+   * @param unit        the unit of the ttl
+   */
+  public FragmentCache(int maximumSize, long ttl, TimeUnit unit) {
+    MapMaker mapMaker = new MapMaker().maximumSize(maximumSize);
+    if (ttl > 0) {
+      mapMaker.expireAfterWrite(ttl, unit);
+    }
+    fragments = mapMaker.evictionListener(new MapEvictionListener<Key, String>() {
+      @Override
+      public void onEviction(Key key, String fragment) {
+        evictions.incrementAndGet();
+      }
+    }).makeMap();
+  }
+
+  /**
+   * The fragment rendered by the section for the key or null.
+   *
+   * @param section the file and line of the section
+   * @param key     the name of the fragment followed by the values it depends on
+   * @return
+   */
+  public String get(String section, List<String> key) {
+    String fragment = fragments.get(new Key(section, key));
+    if (fragment == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return fragment;
+  }
+
+  public void put(String section, List<String> key, String fragment) {
+    fragments.put(new Key(section, key), fragment);
+  }
+
+  /**
+   * The generation to pass to put when a fragment that is about to be rendered is cached.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Cache the fragment unless something was invalidated since the generation was read, the
+   * fragment may have been rendered from the values that were invalidated.
+   *
+   * @param generation the generation read before the fragment was rendered
+   */
+  public void put(String section, List<String> key, String fragment, long generation) {
+    if (this.generation.get() != generation) return;
+    Key k = new Key(section, key);
+    fragments.put(k, fragment);
+    if (this.generation.get() != generation) {
+      // Invalidated while it was being put
+      fragments.remove(k, fragment);
+    }
+  }
+
+  /**
+   * Drop the fragments whose key starts with the name and values given. For example
+   * invalidate("sidebar") drops every fragment of {{#cache sidebar user.id}} and
+   * invalidate("sidebar", 42) drops the one rendered for user 42.
+   *
+   * @param key the name followed by any number of the values
+   */
+  public void invalidate(Object... key) {
+    List<String> prefix = new ArrayList<String>(key.length);
+    for (Object o : key) {
+      prefix.add(String.valueOf(o));
+    }
+    generation.incrementAndGet();
+    Iterator<Key> iterator = fragments.keySet().iterator();
+    while (iterator.hasNext()) {
+      List<String> k = iterator.next().key;
+      if (k.size() >= prefix.size() && k.subList(0, prefix.size()).equals(prefix)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    fragments.clear();
+  }
+
+  public int size() {
+    return fragments.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * How many fragments were dropped because there were too many or they were too old.
+   * Invalidated fragments are not counted.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  private static class Key {
+    final String section;
+    final List<String> key;
+
+    Key(String section, List<String> key) {
+      this.section = section;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return section.equals(other.section) && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return section.hashCode() * 31 + key.hashCode();
+    }
+  }
+}
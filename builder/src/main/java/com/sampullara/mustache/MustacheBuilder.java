@@ -11,11 +11,21 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
 import com.google.common.base.Charsets;
 import com.sampullara.mustache.code.BuilderCodeFactory;
-import com.sampullara.mustache.code.WriteCode;
+import com.sampullara.mustache.code.Dependencies;
+import com.sampullara.mustache.code.Inliner;
+import com.sampullara.util.FutureWriter;
 
 /**
  * A pseudo interpreter / compiler. Instead of compiling to Java code, it compiles to a
@@ -25,12 +35,26 @@ import com.sampullara.mustache.code.WriteCode;
  * Date: 5/14/11
  * Time: 3:52 PM
  */
-public class MustacheBuilder implements MustacheJava {
+public class MustacheBuilder implements MustacheJava, SharedPartials {
+  private static Logger logger = Logger.getLogger(MustacheBuilder.class.getName());
+  private static final String CACHE = "cache ";
 
   private Class<? extends Mustache> superclass;
   private CodeFactory cf = new BuilderCodeFactory();
   private MustacheContext mc;
 
+  // Replaced rather than cleared when it is invalidated, so compiles that are still running
+  // finish into the cache they started with
+  private volatile Cache cache = new Cache();
+  private boolean inlinePartials;
+  private final AtomicInteger inlinedPartials = new AtomicInteger();
+  private final AtomicInteger removedCodes = new AtomicInteger();
+  private boolean prefetch;
+  // Only templates read from a root directory can be checked for changes
+  private File root;
+  private volatile long checkInterval = -1;
+  private final AtomicLong lastCheck = new AtomicLong();
+
   public MustacheBuilder() {
     this((String)null);
   }
@@ -61,12 +85,17 @@ public class MustacheBuilder implements MustacheJava {
         }
       }
     });
+    this.root = root;
   }
 
   public MustacheBuilder(MustacheContext mc) {
     this.mc = mc;
   }
 
+  public void setCodeFactory(CodeFactory cf) {
+    this.cf = cf;
+  }
+
   public void setSuperclass(String superclass) {
     try {
       this.superclass = (Class<? extends Mustache>) Class.forName(superclass);
@@ -79,7 +108,103 @@ public class MustacheBuilder implements MustacheJava {
     return build(new StringReader(template), path);
   }
 
+  /**
+   * Copy the codes of partials and extended templates into the templates that use them when
+   * they are built. Partials of Mustache classes that change how partials are found or
+   * executed are not inlined. Templates have to be built again to see changes to the
+   * partials they inlined.
+   */
+  public void setInlinePartials(boolean inlinePartials) {
+    this.inlinePartials = inlinePartials;
+  }
+
+  /**
+   * How many partials have been inlined into the templates built so far and how many codes
+   * that removed.
+   */
+  public InlineStats getInlineStats() {
+    return new InlineStats(inlinedPartials.get(), removedCodes.get());
+  }
+
+  /**
+   * How much inlining has done for the templates this builder has built.
+   */
+  public static class InlineStats {
+    private final int partials;
+    private final int removed;
+
+    InlineStats(int partials, int removed) {
+      this.partials = partials;
+      this.removed = removed;
+    }
+
+    /**
+     * How many partials and extended templates have been inlined.
+     */
+    public int getPartials() {
+      return partials;
+    }
+
+    /**
+     * How many fewer codes the templates have than they would have without inlining.
+     */
+    public int getRemoved() {
+      return removed;
+    }
+
+    @Override
+    public String toString() {
+      return "[Inlined " + partials + " partials, removing " + removed + " codes]";
+    }
+  }
+
+  /**
+   * Find the values templates may look up when they are built so that renders start the
+   * futures along them before anything is written. Only the paths from the scope a render
+   * starts with are followed, through fields and members declared to return futures. They
+   * stop at collections and futures that haven't completed. The values found are kept for
+   * the render in its memo or, without one, in a memo that only holds them.
+   */
+  public void setPrefetch(boolean prefetch) {
+    this.prefetch = prefetch;
+  }
+
   public Mustache build(final Reader br, String path) throws MustacheException {
+    Mustache mustache = create(br, path);
+    if (inlinePartials) {
+      Inliner inliner = new Inliner(cf) {
+        @Override
+        protected Mustache partial(Mustache m, String name) throws MustacheException {
+          return resolve(m, name);
+        }
+      };
+      mustache.setCompiled(inliner.inline(mustache));
+      inlinedPartials.addAndGet(inliner.getPartials());
+      removedCodes.addAndGet(inliner.getRemoved());
+      logger.fine("Inlined " + inliner.getPartials() + " partials into " + path + ", removing " +
+              inliner.getRemoved() + " codes");
+    }
+    if (prefetch) {
+      mustache.setDependencies(new Dependencies() {
+        @Override
+        protected Mustache partial(Mustache m, String name) throws MustacheException {
+          return resolve(m, name);
+        }
+      }.analyze(mustache));
+    }
+    return mustache;
+  }
+
+  /**
+   * The partial as it was written, or null if the Mustache class finds its own partials.
+   */
+  private Mustache resolve(Mustache m, String name) throws MustacheException {
+    if (overridesPartials(m.getClass())) return null;
+    Mustache partial = parsed(name + "." + m.getPartialExtension());
+    return overridesPartials(partial.getClass()) ? null : partial;
+  }
+
+  private Mustache create(Reader br, String path) throws MustacheException {
     Mustache mustache;
     try {
       mustache = superclass == null ? new Mustache() : superclass.newInstance();
@@ -93,190 +218,387 @@ public class MustacheBuilder implements MustacheJava {
   }
 
   public Mustache parseFile(String path) throws MustacheException {
-    return build(mc.getReader(path), path);
+    return build(read(path, cache), path);
+  }
+
+  /**
+   * Read the template, recording when its file was modified in the cache that the template
+   * is compiled for.
+   */
+  private Reader read(String path, Cache cache) throws MustacheException {
+    if (root != null) {
+      cache.modified.put(path, new File(root, path).lastModified());
+    }
+    return mc.getReader(path);
+  }
+
+  /**
+   * Returns the compiled template for the path, compiling it the first time it is asked for.
+   * Concurrent first requests wait for a single compilation. Failures are not cached.
+   */
+  public Mustache parseCached(final String path) throws MustacheException {
+    checkModified();
+    final Cache cache = this.cache;
+    return cached(cache.templates, path, new Callable<Mustache>() {
+      @Override
+      public Mustache call() throws MustacheException {
+        return build(read(path, cache), path);
+      }
+    });
+  }
+
+  /**
+   * The template as it was written, without anything inlined. Partials are inlined from
+   * these so that templates that include each other don't wait for each other to be built.
+   */
+  private Mustache parsed(final String path) throws MustacheException {
+    final Cache cache = this.cache;
+    return cached(cache.parsed, path, new Callable<Mustache>() {
+      @Override
+      public Mustache call() throws MustacheException {
+        return create(read(path, cache), path);
+      }
+    });
+  }
+
+  private static Mustache cached(ConcurrentMap<String, FutureTask<Mustache>> templates, String path,
+                                 Callable<Mustache> callable) throws MustacheException {
+    FutureTask<Mustache> task = templates.get(path);
+    if (task == null) {
+      FutureTask<Mustache> newTask = new FutureTask<Mustache>(callable);
+      task = templates.putIfAbsent(path, newTask);
+      if (task == null) {
+        task = newTask;
+        task.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MustacheException("Interrupted while compiling " + path, e);
+    } catch (ExecutionException e) {
+      templates.remove(path, task);
+      Throwable cause = e.getCause();
+      if (cause instanceof MustacheException) {
+        throw (MustacheException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new MustacheException("Failed to compile " + path, (Exception) cause);
+    }
+  }
+
+  public Mustache parsePartial(String path) throws MustacheException {
+    return parseCached(path);
+  }
+
+  /**
+   * How often, in milliseconds, parseCached checks the files it has read for changes. Only
+   * templates read from a root directory are checked. Zero checks on every call and a negative
+   * interval, the default, never checks.
+   */
+  public void setCheckInterval(long checkInterval) {
+    this.checkInterval = checkInterval;
+  }
+
+  /**
+   * Drop every cached template. Compiles that are running finish into the dropped cache, so
+   * the times they record can't make their templates look current.
+   */
+  public void invalidate() {
+    cache = new Cache();
+  }
+
+  /**
+   * The compiled templates and the times the files they were read from were modified.
+   */
+  private static class Cache {
+    // Templates compiled by parseCached, each compiled only once even when requested concurrently
+    final ConcurrentMap<String, FutureTask<Mustache>> templates =
+            new ConcurrentHashMap<String, FutureTask<Mustache>>();
+    // Templates as they were written, for inlining into other templates
+    final ConcurrentMap<String, FutureTask<Mustache>> parsed =
+            new ConcurrentHashMap<String, FutureTask<Mustache>>();
+    final ConcurrentMap<String, Long> modified = new ConcurrentHashMap<String, Long>();
+  }
+
+  private static boolean overridesPartials(Class<? extends Mustache> aClass) {
+    return overrides(aClass, "partial", String.class) ||
+            overrides(aClass, "compilePartial", String.class) ||
+            overrides(aClass, "getPartialExtension") ||
+            overrides(aClass, "partial", FutureWriter.class, Scope.class, String.class, Mustache.class);
+  }
+
+  private static boolean overrides(Class<?> aClass, String name, Class<?>... types) {
+    for (Class<?> c = aClass; c != Mustache.class; c = c.getSuperclass()) {
+      try {
+        c.getDeclaredMethod(name, types);
+        return true;
+      } catch (NoSuchMethodException e) {
+        // Keep looking
+      }
+    }
+    return false;
+  }
+
+  private void checkModified() {
+    long interval = checkInterval;
+    if (root == null || interval < 0) return;
+    long now = System.currentTimeMillis();
+    long last = lastCheck.get();
+    if (now - last < interval || !lastCheck.compareAndSet(last, now)) return;
+    for (Map.Entry<String, Long> entry : cache.modified.entrySet()) {
+      if (new File(root, entry.getKey()).lastModified() != entry.getValue()) {
+        // Partials and extended templates are compiled into the templates that use them
+        invalidate();
+        return;
+      }
+    }
   }
 
   protected List<Code> compile(final Mustache m, final Reader br, String tag, final AtomicInteger currentLine, String file) throws MustacheException {
-    final List<Code> list = new LinkedList<Code>();
+    Source source;
+    try {
+      source = new Source(br);
+    } catch (IOException e) {
+      throw new MustacheException("Failed to read", e);
+    }
+    return compile(m, source, tag, currentLine, file);
+  }
+
+  /**
+   * The whole template in memory. Sections are compiled recursively from the same source.
+   */
+  private static class Source {
+    final char[] chars;
+    final int length;
+    int position;
 
-    // Now we grab the mustache template
-    String sm = "{{";
-    String em = "}}";
+    Source(Reader br) throws IOException {
+      char[] buffer = new char[8192];
+      int total = 0;
+      int read;
+      try {
+        while ((read = br.read(buffer, total, buffer.length - total)) != -1) {
+          total += read;
+          if (total == buffer.length) {
+            char[] bigger = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, bigger, 0, total);
+            buffer = bigger;
+          }
+        }
+      } finally {
+        br.close();
+      }
+      chars = buffer;
+      length = total;
+    }
+
+    /**
+     * The position of the next }} or the end of the template.
+     */
+    int endOfTag() {
+      for (int i = position; i < length - 1; i++) {
+        if (chars[i] == '}' && chars[i + 1] == '}') {
+          return i;
+        }
+      }
+      return length;
+    }
+  }
+
+  private List<Code> compile(final Mustache m, final Source source, String tag, final AtomicInteger currentLine, String file) throws MustacheException {
+    final Codes list = new Codes();
+    final char[] chars = source.chars;
+    final int length = source.length;
 
-    int c;
     boolean onlywhitespace = true;
     boolean iterable = currentLine.get() != 0;
     currentLine.compareAndSet(0, 1);
     StringBuilder out = new StringBuilder();
-    try {
-      while ((c = br.read()) != -1) {
-        if (c == '\r') {
-          continue;
+    while (source.position < length) {
+      char c = chars[source.position];
+      if (c == '\r') {
+        source.position++;
+        continue;
+      }
+      // Increment the line
+      if (c == '\n') {
+        source.position++;
+        currentLine.incrementAndGet();
+        if (!iterable || (iterable && !onlywhitespace)) {
+          out.append("\n");
         }
-        // Increment the line
-        if (c == '\n') {
-          currentLine.incrementAndGet();
-          if (!iterable || (iterable && !onlywhitespace)) {
-            out.append("\n");
-          }
-          out = write(list, out, currentLine.intValue());
+        list.write(out, currentLine.intValue());
 
-          iterable = false;
-          onlywhitespace = true;
-          continue;
-        }
-        // Check for a mustache start
-        if (c == sm.charAt(0)) {
-          br.mark(1);
-          if (br.read() == sm.charAt(1)) {
-            // Two mustaches, now capture command
-            StringBuilder sb = new StringBuilder();
-            while ((c = br.read()) != -1) {
-              br.mark(1);
-              if (c == em.charAt(0)) {
-                if (br.read() == em.charAt(1)) {
-                  // Matched end
-                  break;
-                } else {
-                  // Only one
-                  br.reset();
-                }
-              }
-              sb.append((char) c);
+        iterable = false;
+        onlywhitespace = true;
+        continue;
+      }
+      // Check for a mustache start
+      if (c == '{' && source.position + 1 < length && chars[source.position + 1] == '{') {
+        // Two mustaches, now capture command
+        int start = source.position + 2;
+        source.position = start;
+        int end = source.endOfTag();
+        boolean closed = end < length;
+        source.position = closed ? end + 2 : length;
+        final String command = new String(chars, start, end - start);
+        final char ch = command.charAt(0);
+        final String variable = command.substring(1).trim();
+        switch (ch) {
+          case '#':
+          case '^':
+          case '_':
+          case '<':
+          case '$':
+          case '=':
+          case '?': {
+            int line = currentLine.get();
+            // {{#cache name key...}} is closed by {{/cache}}
+            final boolean cache = ch == '#' && variable.startsWith(CACHE) && cf instanceof CacheCodeFactory;
+            final List<Code> codes = compile(m, source, cache ? CACHE.trim() : variable, currentLine, file);
+            int lines = currentLine.get() - line;
+            if (!onlywhitespace || lines == 0) {
+              list.write(out, currentLine.intValue());
             }
-            final String command = sb.toString();
-            final char ch = command.charAt(0);
-            final String variable = command.substring(1).trim();
+            out.setLength(0);
             switch (ch) {
               case '#':
-              case '^':
-              case '_':
-              case '<':
-              case '$':
-              case '=':
-              case '?': {
-                int start = currentLine.get();
-                final List<Code> codes = compile(m, br, variable, currentLine, file);
-                int lines = currentLine.get() - start;
-                if (!onlywhitespace || lines == 0) {
-                  write(list, out, currentLine.intValue());
-                }
-                out = new StringBuilder();
-                switch (ch) {
-                  case '#':
-                    list.add(cf.iterable(m, variable, codes, file, start));
-                    break;
-                  case '^':
-                    list.add(cf.notIterable(m, variable, codes, file, start));
-                    break;
-                  case '?':
-                    list.add(cf.ifIterable(m, variable, codes, file, start));
-                    break;
-                  case '_':
-                    list.add(cf.function(m, variable, codes, file, start));
-                    break;
-                  case '<':
-                    list.add(cf.extend(m, variable, codes, file, start));
-                    break;
-                  case '$':
-                    list.add(cf.name(m, variable, codes, file, start));
-                    break;
-                }
-                iterable = lines != 0;
-                break;
-              }
-              case '/': {
-                // Tag end
-                if (!onlywhitespace) {
-                  write(list, out, currentLine.intValue());
-                }
-                if (!variable.equals(tag)) {
-                  throw new MustacheException(
-                          "Mismatched start/end tags: " + tag + " != " + variable + " in " + file + ":" + currentLine);
-                }
-
-                return list;
-              }
-              case '>': {
-                out = write(list, out, currentLine.intValue());
-                list.add(cf.partial(m, variable, file, currentLine.get()));
-                break;
-              }
-              case '{': {
-                out = write(list, out, currentLine.intValue());
-                // Not escaped
-                String name = variable;
-                if (em.charAt(1) != '}') {
-                  name = variable.substring(0, variable.length() - 1);
+                if (cache) {
+                  list.add(((CacheCodeFactory) cf).cache(m, variable.substring(CACHE.length()).trim(), codes, file, line));
                 } else {
-                  if (br.read() != '}') {
-                    throw new MustacheException(
-                            "Improperly closed variable in " + file + ":" + currentLine);
-                  }
+                  list.add(cf.iterable(m, variable, codes, file, line));
                 }
-                final String finalName = name;
-                list.add(cf.value(m, finalName, false, currentLine.intValue()));
                 break;
-              }
-              case '&': {
-                // Not escaped
-                out = write(list, out, currentLine.intValue());
-                list.add(cf.value(m, variable, false, currentLine.intValue()));
+              case '^':
+                list.add(cf.notIterable(m, variable, codes, file, line));
                 break;
-              }
-              case '%':
-                // Pragmas
-                out = write(list, out, currentLine.intValue());
+              case '?':
+                list.add(cf.ifIterable(m, variable, codes, file, line));
                 break;
-              case '!':
-                // Comment
-                out = write(list, out, currentLine.intValue());
+              case '_':
+                list.add(cf.function(m, variable, codes, file, line));
                 break;
-              default: {
-                if (c == -1) {
-                  throw new MustacheException(
-                          "Improperly closed variable in " + file + ":" + currentLine);
-                }
-                // Reference
-                out = write(list, out, currentLine.intValue());
-                list.add(cf.value(m, command.trim(), true, currentLine.intValue()));
+              case '<':
+                list.add(cf.extend(m, variable, codes, file, line));
+                break;
+              case '$':
+                list.add(cf.name(m, variable, codes, file, line));
                 break;
-              }
             }
-            continue;
-          } else {
-            // Only one
-            br.reset();
+            iterable = lines != 0;
+            break;
+          }
+          case '/': {
+            // Tag end
+            if (!onlywhitespace) {
+              list.write(out, currentLine.intValue());
+            }
+            if (!variable.equals(tag)) {
+              throw new MustacheException(
+                      "Mismatched start/end tags: " + tag + " != " + variable + " in " + file + ":" + currentLine);
+            }
+
+            return list.finish();
+          }
+          case '>': {
+            list.write(out, currentLine.intValue());
+            list.add(cf.partial(m, variable, file, currentLine.get()));
+            break;
+          }
+          case '{': {
+            list.write(out, currentLine.intValue());
+            // Not escaped
+            if (source.position == length || chars[source.position++] != '}') {
+              throw new MustacheException(
+                      "Improperly closed variable in " + file + ":" + currentLine);
+            }
+            list.add(cf.value(m, variable, false, currentLine.intValue()));
+            break;
+          }
+          case '&': {
+            // Not escaped
+            list.write(out, currentLine.intValue());
+            list.add(cf.value(m, variable, false, currentLine.intValue()));
+            break;
+          }
+          case '%':
+            // Pragmas
+            list.write(out, currentLine.intValue());
+            break;
+          case '!':
+            // Comment
+            list.write(out, currentLine.intValue());
+            break;
+          default: {
+            if (!closed) {
+              throw new MustacheException(
+                      "Improperly closed variable in " + file + ":" + currentLine);
+            }
+            // Reference
+            list.write(out, currentLine.intValue());
+            list.add(cf.value(m, command.trim(), true, currentLine.intValue()));
+            break;
           }
         }
-        onlywhitespace = (c == ' ' || c == '\t') && onlywhitespace;
-        out.append((char) c);
+        continue;
       }
-      write(list, out, currentLine.intValue());
-      br.close();
-    } catch (IOException e) {
-      throw new MustacheException("Failed to read", e);
+      // Copy the text up to the next line or possible tag in one go
+      int start = source.position;
+      do {
+        onlywhitespace = (c == ' ' || c == '\t') && onlywhitespace;
+        if (++source.position == length) break;
+        c = chars[source.position];
+      } while (c != '\n' && c != '\r' && c != '{');
+      out.append(chars, start, source.position - start);
     }
+    list.write(out, currentLine.intValue());
     list.add(cf.eof(currentLine.intValue()));
-    return list;
+    return list.finish();
   }
 
   /**
-   * Ignore empty strings and append to the previous code if it was also a write.
+   * The codes of a template or section. Runs of text, even when they are interrupted by
+   * comments or pragmas, are collected and become a single write code when the next code
+   * is added so that the code never has to change.
    */
-  private StringBuilder write(List<Code> list, StringBuilder out, int line) {
-    String text = out.toString();
-    if (text.length() > 0) {
-      int size = list.size();
-      Code code;
-      if (size > 0 && (code = list.get(size - 1)) instanceof WriteCode) {
-        WriteCode writeCode = (WriteCode) code;
-        writeCode.append(text);
-      } else {
-        list.add(cf.write(text, line));
+  private class Codes {
+    private final List<Code> list = new LinkedList<Code>();
+    private final StringBuilder text = new StringBuilder();
+    private int line;
+
+    /**
+     * Ignore empty strings. The builder is emptied so that it can be reused for the next run
+     * of text.
+     */
+    void write(StringBuilder out, int line) {
+      if (out.length() > 0) {
+        if (text.length() == 0) {
+          this.line = line;
+        }
+        text.append(out);
+        out.setLength(0);
+      }
+    }
+
+    void add(Code code) {
+      flush();
+      list.add(code);
+    }
+
+    List<Code> finish() {
+      flush();
+      return list;
+    }
+
+    private void flush() {
+      if (text.length() > 0) {
+        list.add(cf.write(text.toString(), line));
+        text.setLength(0);
       }
     }
-    return new StringBuilder();
   }
 
 }
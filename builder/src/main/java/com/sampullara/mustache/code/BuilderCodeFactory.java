@@ -1,7 +1,9 @@
 package com.sampullara.mustache.code;
 
+import com.sampullara.mustache.CacheCodeFactory;
 import com.sampullara.mustache.Code;
 import com.sampullara.mustache.CodeFactory;
+import com.sampullara.mustache.FragmentCache;
 import com.sampullara.mustache.Mustache;
 import com.sampullara.mustache.MustacheException;
 import com.sampullara.mustache.Scope;
@@ -13,7 +15,20 @@ import java.util.List;
  * In many cases where you significantly change the behavior of the default Mustache class you
  * may want to have your own CodeFactory that works with it.
  */
-public class BuilderCodeFactory implements CodeFactory {
+public class BuilderCodeFactory implements CodeFactory, CacheCodeFactory {
+  private final FragmentCache cache;
+
+  public BuilderCodeFactory() {
+    this(new FragmentCache());
+  }
+
+  public BuilderCodeFactory(FragmentCache cache) {
+    this.cache = cache;
+  }
+
+  public FragmentCache getFragmentCache() {
+    return cache;
+  }
 
   @Override
   public Code iterable(Mustache m, String variable, List<Code> codes, String file, int line) {
@@ -65,6 +80,11 @@ public class BuilderCodeFactory implements CodeFactory {
     return new ExtendNameCode(m, variable, codes, file, i);
   }
 
+  @Override
+  public Code cache(Mustache m, String key, List<Code> codes, String file, int line) {
+    return new CacheCode(m, cache, key, codes, file, line);
+  }
+
   public static void put(Scope result, String name, Object value) {
     String[] splits = name.split("[.]");
     Scope depth = result;
@@ -0,0 +1,131 @@
+package com.sampullara.mustache.code;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sampullara.mustache.Code;
+import com.sampullara.mustache.FragmentCache;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.mustache.Path;
+import com.sampullara.mustache.Scope;
+import com.sampullara.util.FutureWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sampullara.mustache.Mustache.truncate;
+
+/**
+* A section whose output is cached, {{#cache name key...}} ... {{/cache}}. The fragment is
+* rendered once for each value of the rest of the key and written from the cache after that.
+*/
+public class CacheCode extends SubCode {
+  private final FragmentCache cache;
+  private final String section;
+  private final String name;
+  private final Path[] paths;
+
+  public CacheCode(Mustache m, FragmentCache cache, String key, List<Code> codes, String file, int line) {
+    super("#", m, key, codes, file, line);
+    this.cache = cache;
+    this.section = file + ":" + line;
+    String[] split = key.split("\\s+");
+    name = split[0];
+    paths = new Path[split.length - 1];
+    for (int i = 1; i < split.length; i++) {
+      paths[i - 1] = new Path(split[i]);
+    }
+  }
+
+  @Override
+  protected SubCode replaceCodes(List<Code> codes) {
+    return new CacheCode(m, cache, variable, codes, file, line);
+  }
+
+  @Override
+  public void execute(FutureWriter fw, Scope scope) throws MustacheException {
+    final List<String> key = key(scope);
+    final long generation = cache.getGeneration();
+    String fragment = cache.get(section, key);
+    try {
+      if (fragment != null) {
+        fw.write(fragment);
+        return;
+      }
+      final StringWriter sw = new StringWriter();
+      FutureWriter body = new FutureWriter(sw);
+      executeCodes(body, scope);
+      if (fw.isParallel()) {
+        // Cache the fragment once the body has been written rather than waiting for it here
+        ListenableFuture<Object> written = body.flushAsync();
+        fw.enqueue(Futures.transform(written, new Function<Object, Object>() {
+          @Override
+          public Object apply(Object o) {
+            String fragment = sw.toString();
+            cache.put(section, key, fragment, generation);
+            return fragment;
+          }
+        }));
+      } else {
+        body.flush();
+        fragment = sw.toString();
+        cache.put(section, key, fragment, generation);
+        fw.write(fragment);
+      }
+    } catch (IOException e) {
+      throw new MustacheException("Execution failed: " + file + ":" + line, e);
+    }
+  }
+
+  private List<String> key(Scope scope) throws MustacheException {
+    List<String> key = new ArrayList<String>(paths.length + 1);
+    key.add(name);
+    for (Path path : paths) {
+      Object value = m.getValue(scope, path);
+      if (value instanceof Future) {
+        // The key is the value, not the future
+        try {
+          value = ((Future) value).get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new MustacheException("Interrupted while getting the key of " + file + ":" + line, e);
+        } catch (ExecutionException e) {
+          throw new MustacheException("Failed to get the key of " + file + ":" + line, e);
+        }
+      }
+      key.add(String.valueOf(value));
+    }
+    return key;
+  }
+
+  @Override
+  public Scope unexecute(Scope current, String text, AtomicInteger position, Code[] next) throws MustacheException {
+    for (int i = 0; i < codes.length; i++) {
+      if (Mustache.debug) {
+        Mustache.line.set(codes[i].getLine());
+      }
+      Code[] truncate = truncate(codes, i + 1, next);
+      current = codes[i].unexecute(current, text, position, truncate);
+    }
+    return current;
+  }
+
+  @Override
+  public void identity(FutureWriter fw) throws MustacheException {
+    try {
+      fw.append("{{#cache ").append(variable).append("}}");
+      for (Code code : codes) {
+        code.identity(fw);
+      }
+      fw.append("{{/cache}}");
+    } catch (IOException e) {
+      throw new MustacheException("Failed to write", e);
+    }
+  }
+}
@@ -1,32 +1,56 @@
 package com.sampullara.mustache.code;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
 import com.sampullara.mustache.Code;
 import com.sampullara.mustache.MustacheException;
 import com.sampullara.mustache.Scope;
 import com.sampullara.util.FutureWriter;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
-* Writes a string.
+* Writes a string. The text and its UTF-8 encoding are fixed when the code is created.
 * <p/>
 * User: sam
 * Date: 11/27/11
 * Time: 10:46 AM
 */
 public class DefaultWriteCode implements WriteCode {
-  private final StringBuffer rest;
+  // Identical text in different templates shares one string and one encoding. The keys are
+  // interned so the weak map, which compares keys by identity, finds them.
+  private static final Interner<String> texts = Interners.newWeakInterner();
+  private static final ConcurrentMap<String, byte[]> encoded = new MapMaker().weakKeys().makeMap();
+
+  private final String text;
+  private final byte[] bytes;
   private final int line;
 
-  public DefaultWriteCode(String rest, int line) {
-    this.rest = new StringBuffer(rest);
+  public DefaultWriteCode(String text, int line) {
+    this.text = texts.intern(text);
+    this.bytes = encode(this.text);
     this.line = line;
   }
 
+  private static byte[] encode(String text) {
+    byte[] bytes = encoded.get(text);
+    if (bytes == null) {
+      bytes = text.getBytes(Charsets.UTF_8);
+      byte[] existing = encoded.putIfAbsent(text, bytes);
+      if (existing != null) {
+        bytes = existing;
+      }
+    }
+    return bytes;
+  }
+
   public void execute(FutureWriter fw, Scope scope) throws MustacheException {
     try {
-      fw.write(rest.toString());
+      fw.write(text, bytes);
     } catch (IOException e) {
       throw new MustacheException("Failed to write", e);
     }
@@ -39,12 +63,9 @@ public class DefaultWriteCode implements WriteCode {
 
   @Override
   public Scope unexecute(Scope current, String text, AtomicInteger position, Code[] next) throws MustacheException {
-    if (position.get() + rest.length() <= text.length()) {
-      String substring = text.substring(position.get(), position.get() + rest.length());
-      if (rest.toString().equals(substring)) {
-        position.addAndGet(rest.length());
-        return current;
-      }
+    if (text.startsWith(this.text, position.get())) {
+      position.addAndGet(this.text.length());
+      return current;
     }
     return null;
   }
@@ -54,12 +75,19 @@ public class DefaultWriteCode implements WriteCode {
     execute(fw, null);
   }
 
-  public void append(String append) {
-    rest.append(append);
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * The UTF-8 encoding of the text. It is shared and must not be changed.
+   */
+  public byte[] getBytes() {
+    return bytes;
   }
 
   @Override
   public String toString() {
-    return "[Write: " + rest + "]";
+    return "[Write: " + text + "]";
   }
 }
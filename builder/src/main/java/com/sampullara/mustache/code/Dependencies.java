@@ -0,0 +1,92 @@
+package com.sampullara.mustache.code;
+
+import com.sampullara.mustache.Code;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.mustache.Path;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the paths a template may look up from the scope it is executed with by walking its
+ * codes and the codes of its partials and extended templates. Names inside sections are
+ * prefixed with the name of the section, {{#user}}{{name}}{{/user}} depends on user and
+ * user.name. The bodies of functions and cached sections are not walked because they may
+ * never be executed. Partials that can't be found are skipped.
+ */
+public abstract class Dependencies {
+  // The templates being walked, to stop at partials that include themselves
+  private final Set<Mustache> visiting = new HashSet<Mustache>();
+  private final Set<String> names = new LinkedHashSet<String>();
+
+  /**
+   * The partial to walk, or null if it shouldn't be.
+   *
+   * @param m    the mustache that includes it
+   * @param name the name of the partial
+   * @return
+   * @throws MustacheException
+   */
+  protected abstract Mustache partial(Mustache m, String name) throws MustacheException;
+
+  public List<Path> analyze(Mustache m) {
+    collect(m, "");
+    List<Path> paths = new ArrayList<Path>(names.size());
+    for (String name : names) {
+      paths.add(new Path(name));
+    }
+    return paths;
+  }
+
+  private void collect(Mustache m, String prefix) {
+    if (m == null || !visiting.add(m)) {
+      return;
+    }
+    try {
+      collect(m.getCompiled(), prefix);
+    } finally {
+      visiting.remove(m);
+    }
+  }
+
+  private void collect(Code[] codes, String prefix) {
+    for (Code code : codes) {
+      Class<? extends Code> aClass = code.getClass();
+      if (aClass == WriteValueCode.class) {
+        add(prefix, ((WriteValueCode) code).getName());
+      } else if (aClass == PartialCode.class) {
+        PartialCode partial = (PartialCode) code;
+        try {
+          collect(partial(partial.m, partial.variable), prefix);
+        } catch (MustacheException e) {
+          // The render will report it
+        }
+      } else if (aClass == ExtendCode.class) {
+        collect(((ExtendCode) code).getCompiled(), prefix);
+      } else if (aClass == IterableCode.class || aClass == IfIterableCode.class) {
+        SubCode subcode = (SubCode) code;
+        if (add(prefix, subcode.variable)) {
+          collect(subcode.codes, prefix + subcode.variable + ".");
+        } else {
+          collect(subcode.codes, prefix);
+        }
+      } else if (aClass == InvertedIterableCode.class || aClass == FunctionCode.class) {
+        add(prefix, ((SubCode) code).variable);
+      } else if (aClass == ExtendNameCode.class || aClass == InlinedPartialCode.class) {
+        collect(((SubCode) code).codes, prefix);
+      }
+    }
+  }
+
+  private boolean add(String prefix, String name) {
+    if (name.equals(".")) {
+      return false;
+    }
+    names.add(prefix + name);
+    return true;
+  }
+}
@@ -0,0 +1,94 @@
+package com.sampullara.mustache.code;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What executing a section or partial has cost so far in parallel mode. Each sample records
+ * the wall clock time and, where the JVM can tell us, how much of it the thread spent waiting
+ * rather than running. Work that is cheap and doesn't wait runs inline, work that waits on
+ * backends is handed to the executor a piece at a time so the waits overlap.
+ */
+class ExecutionProfile {
+  // Less work than this isn't worth the overhead of a task
+  static final long TASK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  // Waiting at least this long per unit of work means it is worth overlapping
+  private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+  // Every execution is measured at first, after that only some of them
+  private static final int ALWAYS = 16;
+  private static final int EVERY = 64;
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private static final boolean cpuTime = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+
+  // Moving averages per unit of work, 0 until measured
+  private volatile long nanos;
+  private volatile long waiting;
+  // Racy, it only decides which executions are measured
+  private int executions;
+
+  /**
+   * Whether to measure this execution. Work that looks like it is waiting is always measured,
+   * a thread that was descheduled during a sample would otherwise keep it dispatched for a
+   * long time, and the cost of measuring is small next to the wait.
+   */
+  boolean sample() {
+    int n = executions++;
+    return n < ALWAYS || n % EVERY == 0 || isBlocking();
+  }
+
+  static long cpuTime() {
+    return cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+  }
+
+  /**
+   * Record an execution that started at the given wall clock and thread cpu times.
+   */
+  void record(long start, long startCpu, int units) {
+    long wall = System.nanoTime() - start;
+    long running = cpuTime ? cpuTime() - startCpu : wall;
+    long sample = Math.max(1, wall / units);
+    long wait = Math.max(0, wall - running) / units;
+    long current = nanos;
+    // Racing updates lose a sample now and then, that's fine for an estimate
+    if (current == 0) {
+      waiting = wait;
+      nanos = sample;
+    } else {
+      waiting = (waiting * 7 + wait) / 8;
+      nanos = (current * 7 + sample) / 8;
+    }
+  }
+
+  boolean isMeasured() {
+    return nanos != 0;
+  }
+
+  /**
+   * Spends much of its time waiting on something other than the cpu.
+   */
+  boolean isBlocking() {
+    long wait = waiting;
+    return wait >= WAIT_NANOS && wait * 2 >= nanos;
+  }
+
+  /**
+   * Worth running as a task of its own rather than inline.
+   */
+  boolean isWorthDispatching() {
+    return !isMeasured() || isBlocking() || nanos >= TASK_NANOS;
+  }
+
+  /**
+   * How many units of work to put in each task. Work that blocks gets a task per unit so that
+   * the waits overlap, other work is grouped into tasks of about TASK_NANOS.
+   */
+  int chunkSize(int max) {
+    long current = nanos;
+    if (current == 0 || isBlocking()) {
+      return 1;
+    }
+    return (int) Math.max(1, Math.min(max, TASK_NANOS / current));
+  }
+}
@@ -6,6 +6,7 @@ import com.sampullara.mustache.MustacheException;
 import com.sampullara.mustache.Scope;
 import com.sampullara.util.FutureWriter;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,7 +15,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import static com.sampullara.mustache.Mustache.truncate;
 
 /**
-* Extending a template.
+* Extending a template. The extended template is shared with everything else that uses it,
+* so its codes are never changed. Instead the codes on the way to each replaced named section
+* are copied and everything else is reused.
 * <p/>
 * User: sam
 * Date: 11/27/11
@@ -22,7 +25,8 @@ import static com.sampullara.mustache.Mustache.truncate;
 */
 public class ExtendCode extends ExtendBaseCode {
 
-  private Mustache partial;
+  private final Mustache partial;
+  private final Code[] compiled;
 
   public ExtendCode(Mustache m, String variable, List<Code> codes, String file, int line) throws MustacheException {
     super(m, variable, codes, file, line);
@@ -44,10 +48,9 @@ public class ExtendCode extends ExtendBaseCode {
     if (Mustache.debug) {
       debugMap = new HashMap<String, ExtendNameCode>(replaceMap);
     }
-    partial = m.partial(variable);
-    Code[] supercodes = partial.getCompiled();
+    partial = m.extend(variable);
     // recursively replace named sections with replacements
-    replaceCode(supercodes, replaceMap, debugMap);
+    compiled = replaceCode(partial.getCompiled(), replaceMap, debugMap);
     if (Mustache.debug) {
       if (debugMap != null && debugMap.size() > 0) {
         throw new MustacheException(
@@ -56,38 +59,75 @@ public class ExtendCode extends ExtendBaseCode {
     }
   }
 
-  private void replaceCode(Code[] supercodes, Map<String, ExtendNameCode> replaceMap, Map<String, ExtendNameCode> debugMap) {
+  /**
+   * Returns the codes unchanged if none of the named sections in them are replaced, otherwise
+   * a copy with the replaced sections and copies of the sections that contain them.
+   */
+  private static Code[] replaceCode(Code[] supercodes, Map<String, ExtendNameCode> replaceMap, Map<String, ExtendNameCode> debugMap) throws MustacheException {
+    Code[] replaced = supercodes;
     for (int i = 0; i < supercodes.length; i++) {
       Code code = supercodes[i];
+      Code replacement = code;
+      ExtendNameCode extendReplaceCode = null;
       if (code instanceof ExtendNameCode) {
-        ExtendNameCode enc = (ExtendNameCode) code;
-        ExtendNameCode extendReplaceCode = replaceMap.get(enc.getName());
-        if (extendReplaceCode != null) {
-          supercodes[i] = extendReplaceCode;
-        } else {
-          if (Mustache.debug) {
-            debugMap.remove(enc.getName());
-          }
-          replaceCode(enc.codes, replaceMap, debugMap);
+        extendReplaceCode = replaceMap.get(((ExtendNameCode) code).getName());
+      }
+      if (extendReplaceCode != null) {
+        if (Mustache.debug) {
+          debugMap.remove(extendReplaceCode.getName());
         }
+        replacement = extendReplaceCode;
       } else if (code instanceof SubCode) {
         SubCode subcode = (SubCode) code;
-        replaceCode(subcode.codes, replaceMap, debugMap);
+        Code[] codes = replaceCode(subcode.codes, replaceMap, debugMap);
+        if (codes != subcode.codes) {
+          replacement = subcode.replaceCodes(Arrays.asList(codes));
+        }
+      }
+      if (replacement != code) {
+        if (replaced == supercodes) {
+          replaced = supercodes.clone();
+        }
+        replaced[i] = replacement;
       }
     }
+    return replaced;
+  }
+
+  @Override
+  protected SubCode replaceCodes(List<Code> codes) throws MustacheException {
+    return new ExtendCode(m, variable, codes, file, line);
+  }
+
+  /**
+   * The codes of the extended template with the named sections replaced.
+   */
+  public Code[] getCompiled() {
+    return compiled;
   }
 
   @Override
   public void execute(FutureWriter fw, Scope scope) throws MustacheException {
-    partial.execute(fw, scope);
+    if (compiled == partial.getCompiled()) {
+      // Nothing was replaced, the extended template may have been compiled to bytecode
+      partial.execute(fw, scope);
+      return;
+    }
+    int length = compiled.length;
+    for (int i = 0; i < length; i++) {
+      Code code = compiled[i];
+      if (Mustache.debug) {
+        Mustache.line.set(code.getLine());
+      }
+      code.execute(fw, scope);
+    }
   }
 
   @Override
   public Scope unexecute(Scope current, String text, AtomicInteger position, Code[] next) throws MustacheException {
-    Code[] supercodes = partial.getCompiled();
-    for (int i = 0; i < supercodes.length; i++) {
-      Code[] truncate = truncate(supercodes, i + 1, next);
-      supercodes[i].unexecute(current, text, position, truncate);
+    for (int i = 0; i < compiled.length; i++) {
+      Code[] truncate = truncate(compiled, i + 1, next);
+      compiled[i].unexecute(current, text, position, truncate);
     }
     return current;
   }
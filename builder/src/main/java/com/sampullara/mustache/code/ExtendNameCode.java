@@ -25,6 +25,11 @@ public class ExtendNameCode extends ExtendBaseCode {
     super(m, variable, codes, file, line);
   }
 
+  @Override
+  protected SubCode replaceCodes(List<Code> codes) {
+    return new ExtendNameCode(m, variable, codes, file, line);
+  }
+
   @Override
   public void execute(FutureWriter fw, Scope scope) throws MustacheException {
     execute(fw, Arrays.asList(scope));
@@ -25,9 +25,14 @@ public class FunctionCode extends SubCode {
     super("_", m, variable, codes, file, line);
   }
 
+  @Override
+  protected SubCode replaceCodes(List<Code> codes) {
+    return new FunctionCode(m, variable, codes, file, line);
+  }
+
   @Override
   public void execute(FutureWriter fw, Scope scope) throws MustacheException {
-    Object function = m.getValue(scope, variable);
+    Object function = m.getValue(scope, path);
     if (function instanceof Function) {
       execute(fw, m.function(scope, (Function) function));
     } else if (function == null) {
@@ -23,10 +23,19 @@ public class IfIterableCode extends SubCode {
     super("?", m, variable, codes, file, line);
   }
 
+  @Override
+  protected SubCode replaceCodes(List<Code> codes) {
+    return new IfIterableCode(m, variable, codes, file, line);
+  }
+
   @Override
   public void execute(FutureWriter fw, Scope scope) throws MustacheException {
-    fw = m.pushWriter(fw);
-    execute(fw, m.ifiterable(scope, variable));
+    execute(fw, iterable(scope));
+  }
+
+  @Override
+  public Iterable<Scope> iterable(Scope scope) {
+    return m.ifiterable(scope, path);
   }
 
   @Override
@@ -0,0 +1,56 @@
+package com.sampullara.mustache.code;
+
+import com.sampullara.mustache.Code;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.mustache.Scope;
+import com.sampullara.util.FutureWriter;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sampullara.mustache.Mustache.truncate;
+
+/**
+* The codes of a partial copied into the template that includes it. Like the partial they
+* are executed with the value named by the partial pushed on the scope if there is one.
+*/
+public class InlinedPartialCode extends SubCode {
+  public InlinedPartialCode(Mustache m, String variable, List<Code> codes, String file, int line) {
+    super(">", m, variable, codes, file, line);
+  }
+
+  @Override
+  protected SubCode replaceCodes(List<Code> codes) {
+    return new InlinedPartialCode(m, variable, codes, file, line);
+  }
+
+  @Override
+  public void execute(FutureWriter fw, Scope scope) throws MustacheException {
+    Object parent = scope.get(variable);
+    executeCodes(fw, parent == null ? scope : new Scope(parent, scope));
+  }
+
+  @Override
+  public Scope unexecute(Scope current, String text, AtomicInteger position, Code[] next) throws MustacheException {
+    Scope unexecuted = new Scope();
+    for (int i = 0; i < codes.length && unexecuted != null; i++) {
+      Code[] truncate = truncate(codes, i + 1, next);
+      unexecuted = codes[i].unexecute(unexecuted, text, position, truncate);
+    }
+    if (unexecuted != null) {
+      BuilderCodeFactory.put(current, variable, unexecuted);
+    }
+    return current;
+  }
+
+  /**
+   * The text of the partial is written in its place, some of it is no longer in this code.
+   */
+  @Override
+  public void identity(FutureWriter fw) throws MustacheException {
+    for (Code code : codes) {
+      code.identity(fw);
+    }
+  }
+}
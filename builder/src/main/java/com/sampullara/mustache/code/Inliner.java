@@ -0,0 +1,169 @@
+package com.sampullara.mustache.code;
+
+import com.sampullara.mustache.Code;
+import com.sampullara.mustache.CodeFactory;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.util.FutureWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Copies the codes of partials and extended templates into the templates that use them so
+ * that executing a page doesn't go through a Mustache for each of them. Text on either side
+ * of the boundaries is merged into new text codes from the code factory. Partials that include themselves, directly or through other
+ * partials, are left alone where they recurse. The bodies of functions are left as they are
+ * written because template functions are given their text.
+ */
+public abstract class Inliner {
+  private final CodeFactory cf;
+  // The partials being inlined, to find the ones that recurse
+  private final Set<Mustache> inlining = new HashSet<Mustache>();
+  private int partials;
+  private int removed;
+
+  protected Inliner(CodeFactory cf) {
+    this.cf = cf;
+  }
+
+  /**
+   * The partial to copy the codes of, or null if it can't be inlined.
+   *
+   * @param m    the mustache that includes it
+   * @param name the name of the partial
+   * @return
+   * @throws MustacheException
+   */
+  protected abstract Mustache partial(Mustache m, String name) throws MustacheException;
+
+  public List<Code> inline(Mustache m) throws MustacheException {
+    inlining.add(m);
+    try {
+      return inline(m.getCompiled());
+    } finally {
+      inlining.remove(m);
+    }
+  }
+
+  /**
+   * How many partials have been inlined.
+   */
+  public int getPartials() {
+    return partials;
+  }
+
+  /**
+   * How many fewer codes there are than in the templates that were inlined.
+   */
+  public int getRemoved() {
+    return removed;
+  }
+
+  private List<Code> inline(Code[] codes) throws MustacheException {
+    List<Code> list = new ArrayList<Code>(codes.length);
+    for (Code code : codes) {
+      Class<? extends Code> aClass = code.getClass();
+      if (aClass == PartialCode.class) {
+        inline(list, (PartialCode) code);
+      } else if (aClass == ExtendCode.class) {
+        // The extended template runs with the same scope, only its named sections are kept
+        for (Code extended : inline(((ExtendCode) code).getCompiled())) {
+          if (extended.getClass() == EOFCode.class) {
+            removed++;
+          } else {
+            add(list, extended);
+          }
+        }
+        removed++;
+      } else if (code instanceof SubCode && aClass != FunctionCode.class) {
+        SubCode subcode = (SubCode) code;
+        List<Code> subcodes = inline(subcode.codes);
+        if (subcodes.equals(Arrays.asList(subcode.codes))) {
+          list.add(code);
+        } else {
+          list.add(subcode.replaceCodes(subcodes));
+        }
+      } else {
+        add(list, code);
+      }
+    }
+    return list;
+  }
+
+  private void inline(List<Code> list, PartialCode code) throws MustacheException {
+    Mustache partial = partial(code.m, code.variable);
+    if (partial == null || !inlining.add(partial)) {
+      list.add(code);
+      return;
+    }
+    List<Code> codes;
+    try {
+      codes = inline(partial.getCompiled());
+    } finally {
+      inlining.remove(partial);
+    }
+    partials++;
+    removed++;
+    // Text doesn't depend on the scope the partial is executed with
+    int start = 0;
+    int end = codes.size();
+    if (end > 0 && codes.get(end - 1) instanceof EOFCode) {
+      end--;
+      removed++;
+    }
+    while (start < end && codes.get(start) instanceof WriteCode) {
+      add(list, codes.get(start++));
+    }
+    int text = end;
+    while (text > start && codes.get(text - 1) instanceof WriteCode) {
+      text--;
+    }
+    if (start < text) {
+      list.add(new InlinedPartialCode(code.m, code.variable, codes.subList(start, text), code.file, code.line));
+      removed--;
+    }
+    for (Code write : codes.subList(text, end)) {
+      add(list, write);
+    }
+  }
+
+  /**
+   * Add the code, merging it with the previous one if they are both text.
+   */
+  private void add(List<Code> list, Code code) throws MustacheException {
+    int size = list.size();
+    if (size > 0 && code instanceof WriteCode) {
+      Code last = list.get(size - 1);
+      if (last instanceof WriteCode) {
+        list.set(size - 1, cf.write(text(last) + text(code), last.getLine()));
+        removed++;
+        return;
+      }
+    }
+    list.add(code);
+  }
+
+  /**
+   * The text a text code writes, which is also the template it was created from.
+   */
+  private static String text(Code code) throws MustacheException {
+    if (code instanceof DefaultWriteCode) {
+      return ((DefaultWriteCode) code).getText();
+    }
+    StringWriter sw = new StringWriter();
+    FutureWriter fw = new FutureWriter(sw);
+    code.identity(fw);
+    try {
+      fw.flush();
+    } catch (IOException e) {
+      throw new MustacheException("Failed to read text", e);
+    }
+    return sw.toString();
+  }
+}
@@ -23,10 +23,19 @@ public class InvertedIterableCode extends SubCode {
     super("^", m, variable, codes, file, line);
   }
 
+  @Override
+  protected SubCode replaceCodes(List<Code> codes) {
+    return new InvertedIterableCode(m, variable, codes, file, line);
+  }
+
   @Override
   public void execute(FutureWriter fw, Scope scope) throws MustacheException {
-    fw = m.pushWriter(fw);
-    execute(fw, m.inverted(scope, variable));
+    execute(fw, iterable(scope));
+  }
+
+  @Override
+  public Iterable<Scope> iterable(Scope scope) {
+    return m.inverted(scope, path);
   }
 
   @Override
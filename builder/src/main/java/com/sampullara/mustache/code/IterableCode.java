@@ -24,9 +24,14 @@ public class IterableCode extends SubCode {
     super("#", m, variable, codes, file, line);
   }
 
+  @Override
+  protected SubCode replaceCodes(List<Code> codes) {
+    return new IterableCode(m, variable, codes, file, line);
+  }
+
   @Override
   public void execute(FutureWriter fw, Scope scope) throws MustacheException {
-    execute(fw, m.iterable(scope, variable));
+    execute(fw, iterable(scope));
   }
 
   @Override
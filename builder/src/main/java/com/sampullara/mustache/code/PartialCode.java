@@ -20,32 +20,50 @@ import static com.sampullara.mustache.Mustache.truncate;
 * Time: 10:38 AM
 */
 public class PartialCode implements Code {
-  private final String variable;
-  private Mustache m;
-  private final String file;
-  private final int line;
+  final String variable;
+  final Mustache m;
+  final String file;
+  final int line;
   private volatile Mustache partial;
+  // Whether the partial is worth running as a task in parallel mode
+  private final ExecutionProfile profile = new ExecutionProfile();
 
   public PartialCode(Mustache m, String variable, String file, int line) throws MustacheException {
     this.variable = variable;
     this.m = m;
     this.file = file;
     this.line = line;
-    partial = m.partial(variable);
+  }
+
+  /**
+   * Partials are resolved the first time they are executed so that templates can include
+   * themselves and partials are only compiled when used.
+   */
+  private Mustache getPartial() throws MustacheException {
+    Mustache p = partial;
+    if (p == null) {
+      partial = p = m.partial(variable);
+    }
+    return p;
   }
 
   @Override
   public void execute(FutureWriter fw, final Scope scope) throws MustacheException {
+    final Mustache partial = getPartial();
     try {
       if (fw.isParallel()) {
-        fw.enqueue(new Callable<Object>() {
-          @Override
-          public Object call() throws Exception {
-            FutureWriter fw = new FutureWriter();
-            partial.partial(fw, scope, variable, partial);
-            return fw;
-          }
-        });
+        if (profile.isWorthDispatching()) {
+          fw.enqueue(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+              FutureWriter fw = new FutureWriter();
+              execute(fw, scope, partial);
+              return fw;
+            }
+          });
+        } else {
+          execute(fw, scope, partial);
+        }
       } else {
         partial.partial(fw, scope, variable, partial);
       }
@@ -54,6 +72,17 @@ public class PartialCode implements Code {
     }
   }
 
+  private void execute(FutureWriter fw, Scope scope, Mustache partial) throws MustacheException {
+    if (profile.sample()) {
+      long start = System.nanoTime();
+      long startCpu = ExecutionProfile.cpuTime();
+      partial.partial(fw, scope, variable, partial);
+      profile.record(start, startCpu, 1);
+    } else {
+      partial.partial(fw, scope, variable, partial);
+    }
+  }
+
   @Override
   public int getLine() {
     return line;
@@ -61,7 +90,7 @@ public class PartialCode implements Code {
 
   @Override
   public Scope unexecute(Scope current, String text, AtomicInteger position, Code[] next) throws MustacheException {
-    Mustache partial = m.partial(variable);
+    Mustache partial = getPartial();
     Code[] compiled = partial.getCompiled();
     Scope unexecuted = new Scope();
     for (int i = 0; i < compiled.length && unexecuted != null; i++) {
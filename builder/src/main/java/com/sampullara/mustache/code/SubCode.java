@@ -1,14 +1,28 @@
 package com.sampullara.mustache.code;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import com.sampullara.mustache.Code;
+import com.sampullara.mustache.ElementIterable;
 import com.sampullara.mustache.FunctionIterator;
 import com.sampullara.mustache.Mustache;
 import com.sampullara.mustache.MustacheException;
+import com.sampullara.mustache.Path;
+import com.sampullara.mustache.PendingIterable;
 import com.sampullara.mustache.Scope;
 import com.sampullara.util.FutureWriter;
 
@@ -23,44 +37,215 @@ public abstract class SubCode implements Code {
   protected final String marker;
   protected final Mustache m;
   protected final String variable;
+  protected final Path path;
   protected final Code[] codes;
   protected final int line;
   protected final String file;
 
+  // The most elements a task of a parallel section is given, and the most elements whose
+  // Batch values are loaded together
+  private static final int MAX_CHUNK = 1024;
+
+  // What the body costs per element, decides how parallel sections are split
+  private final ExecutionProfile profile = new ExecutionProfile();
+
+  // The names the body looks up on each element, which may have Batch methods
+  private final List<String> names;
+  // Whether the elements of the last render had Batch methods for the names, null before
+  // the first render. Element scopes are reused when they didn't.
+  private volatile Boolean batched;
+
   public SubCode(String marker, Mustache m, String variable, List<Code> codes, String file, int line) {
     this.marker = marker;
     this.m = m;
     this.variable = variable;
+    this.path = variable == null ? null : new Path(variable);
     this.codes = new ArrayList<Code>(codes).toArray(new Code[codes.size()]);
     this.line = line;
     this.file = file;
+    names = names(this.codes);
+  }
+
+  private static List<String> names(Code[] codes) {
+    Set<String> names = new LinkedHashSet<String>();
+    for (Code code : codes) {
+      Class<? extends Code> aClass = code.getClass();
+      String name = null;
+      if (aClass == WriteValueCode.class) {
+        name = ((WriteValueCode) code).getName();
+      } else if (aClass == IterableCode.class || aClass == IfIterableCode.class ||
+              aClass == InvertedIterableCode.class || aClass == FunctionCode.class) {
+        name = ((SubCode) code).variable;
+      }
+      if (name != null && !name.equals(".")) {
+        int dot = name.indexOf('.');
+        names.add(dot == -1 ? name : name.substring(0, dot));
+      }
+    }
+    return new ArrayList<String>(names);
   }
 
   @Override
   public abstract void execute(FutureWriter fw, Scope scope) throws MustacheException;
 
-  protected void execute(FutureWriter fw, final Iterable<Scope> iterable) throws MustacheException {
-    if (iterable != null) {
-      for (final Scope subScope : iterable) {
+  /**
+   * The scopes the body of the section is executed with.
+   *
+   * @param scope
+   * @return
+   */
+  public Iterable<Scope> iterable(Scope scope) {
+    return m.iterable(scope, path);
+  }
+
+  public void execute(FutureWriter fw, final Iterable<Scope> iterable) throws MustacheException {
+    if (iterable instanceof FunctionIterator) {
+      function(fw, (FunctionIterator) iterable);
+      return;
+    }
+    if (iterable instanceof PendingIterable && fw.isParallel()) {
+      Future pending = ((PendingIterable) iterable).getPending();
+      if (pending instanceof ListenableFuture && !pending.isDone()) {
+        // Render the section when its value arrives instead of waiting for it here
         try {
-          fw = m.pushWriter(fw);
-          if (fw.isParallel()) {
-            fw.enqueue(new Callable<Object>() {
-              @Override
-              public Object call() throws Exception {
-                FutureWriter writer = new FutureWriter();
-                SubCode.this.execute(writer, iterable, subScope);
-                return writer;
+          fw.enqueue(Futures.transform((ListenableFuture<?>) pending, new Function<Object, Object>() {
+            @Override
+            public Object apply(Object o) {
+              FutureWriter writer = new FutureWriter();
+              try {
+                SubCode.this.execute(writer, iterable);
+              } catch (MustacheException e) {
+                throw new RuntimeException(e);
               }
-            });
-          } else {
-            SubCode.this.execute(fw, iterable, subScope);
-          }
+              return writer;
+            }
+          }));
         } catch (IOException e) {
           throw new MustacheException("Execution failed: " + file + ":" + line, e);
         }
+        return;
+      }
+    }
+    if (iterable != null) {
+      Iterator<Scope> scopes = scopes(fw, iterable);
+      if (!fw.isParallel()) {
+        while (scopes.hasNext()) {
+          executeCodes(fw, scopes.next());
+        }
+        return;
+      }
+      List<Scope> chunk = new ArrayList<Scope>();
+      int size = profile.chunkSize(MAX_CHUNK);
+      while (scopes.hasNext()) {
+        chunk.add(scopes.next());
+        if (chunk.size() == size) {
+          enqueue(fw, chunk);
+          chunk = new ArrayList<Scope>();
+          size = profile.chunkSize(MAX_CHUNK);
+        }
+      }
+      if (!chunk.isEmpty()) {
+        if (profile.isWorthDispatching()) {
+          enqueue(fw, chunk);
+        } else {
+          // Less than a task's worth of work that doesn't wait, it isn't worth handing off
+          executeChunk(fw, chunk);
+        }
+      }
+    }
+  }
+
+  /**
+   * The scopes of the elements of the section in the order the body is executed with them.
+   * Serially each scope is finished with before the next one so they are reused, unless the
+   * elements have Batch methods for the names the body looks up. The class of the first
+   * element decides, the values of those are loaded for a window of elements at a time
+   * before any of them are executed. Since the scopes are created before the first element
+   * is seen, a render whose elements have Batch methods when the last one's didn't isn't
+   * batched.
+   *
+   * @param fw       the writer the section is executed with
+   * @param iterable the scopes of the section
+   * @return
+   */
+  public Iterator<Scope> scopes(FutureWriter fw, Iterable<Scope> iterable) {
+    boolean serial = !fw.isParallel();
+    if (names.isEmpty()) {
+      return ElementIterable.iterator(iterable, serial);
+    }
+    boolean reuse = serial && Boolean.FALSE.equals(batched);
+    Iterator<Scope> scopes = ElementIterable.iterator(iterable, reuse);
+    if (!scopes.hasNext()) {
+      return scopes;
+    }
+    Scope first = scopes.next();
+    boolean batch = first.isBatched(names);
+    batched = batch;
+    if (batch && !reuse) {
+      return batch(first, scopes);
+    }
+    return Iterators.concat(Iterators.singletonIterator(first), scopes);
+  }
+
+  /**
+   * Look up the values the body needs that have Batch methods for each window of elements
+   * before any of them are executed.
+   */
+  private Iterator<Scope> batch(final Scope first, final Iterator<Scope> scopes) {
+    return new AbstractIterator<Scope>() {
+      Iterator<Scope> window = Iterators.emptyIterator();
+      Scope pending = first;
+
+      @Override
+      protected Scope computeNext() {
+        if (!window.hasNext()) {
+          List<Scope> next = new ArrayList<Scope>();
+          if (pending != null) {
+            next.add(pending);
+            pending = null;
+          }
+          while (next.size() < MAX_CHUNK && scopes.hasNext()) {
+            next.add(scopes.next());
+          }
+          if (next.isEmpty()) {
+            return endOfData();
+          }
+          Scope.batch(next, names);
+          window = next.iterator();
+        }
+        return window.next();
+      }
+    };
+  }
+
+  private void enqueue(FutureWriter fw, final List<Scope> chunk) throws MustacheException {
+    try {
+      fw.enqueue(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          FutureWriter writer = new FutureWriter();
+          executeChunk(writer, chunk);
+          return writer;
+        }
+      });
+    } catch (IOException e) {
+      throw new MustacheException("Execution failed: " + file + ":" + line, e);
+    }
+  }
+
+  private void executeChunk(FutureWriter fw, List<Scope> chunk) throws MustacheException {
+    if (!profile.sample()) {
+      for (Scope subScope : chunk) {
+        executeCodes(fw, subScope);
       }
+      return;
+    }
+    long start = System.nanoTime();
+    long startCpu = ExecutionProfile.cpuTime();
+    for (Scope subScope : chunk) {
+      executeCodes(fw, subScope);
     }
+    profile.record(start, startCpu, chunk.size());
   }
 
   public void executeCodes(FutureWriter fw, Scope scope) throws MustacheException {
@@ -74,18 +259,54 @@ public abstract class SubCode implements Code {
     }
   }
 
-  private void execute(FutureWriter writer, Iterable<Scope> iterable, Scope subScope) throws MustacheException {
-    if (iterable instanceof FunctionIterator && ((FunctionIterator) iterable).isTemplateFunction()) {
-      identityCode(writer);
+  /**
+   * Capture the body of the section in a writer of its own and give it to the function.
+   */
+  private void function(FutureWriter fw, FunctionIterator function) throws MustacheException {
+    StringWriter sw = new StringWriter();
+    FutureWriter body = new FutureWriter(sw);
+    if (function.isTemplateFunction()) {
+      identityCode(body);
     } else {
-      executeCodes(writer, subScope);
+      for (Scope subScope : function) {
+        executeCodes(body, subScope);
+      }
+    }
+    try {
+      body.flush();
+    } catch (IOException e) {
+      throw new MustacheException("Execution failed: " + file + ":" + line, e);
     }
+    function.apply(fw, sw.toString());
   }
 
   public int getLine() {
     return line;
   }
 
+  public String getVariable() {
+    return variable;
+  }
+
+  /**
+   * The codes of the section. Compiled templates are shared, these must not be changed.
+   */
+  public Code[] getCodes() {
+    return codes;
+  }
+
+  /**
+   * A copy of this section with different codes. Extending a template copies the sections
+   * that contain a replaced named section rather than changing the shared ones.
+   *
+   * @param codes the codes of the copy
+   * @return
+   * @throws MustacheException
+   */
+  protected SubCode replaceCodes(List<Code> codes) throws MustacheException {
+    throw new MustacheException("Cannot replace named sections within " + getClass().getName());
+  }
+
   public void identity(FutureWriter fw) throws MustacheException {
     try {
       fw.append("{{").append(marker).append(variable).append("}}");
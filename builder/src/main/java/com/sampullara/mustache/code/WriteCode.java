@@ -2,6 +2,9 @@ package com.sampullara.mustache.code;
 
 import com.sampullara.mustache.Code;
 
+/**
+ * Static text. The builder collects consecutive text before creating the code so it
+ * never changes afterwards.
+ */
 public interface WriteCode extends Code {
-  void append(String s);
 }
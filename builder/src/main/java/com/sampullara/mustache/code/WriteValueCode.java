@@ -4,6 +4,7 @@ import com.sampullara.mustache.Code;
 import com.sampullara.mustache.Mustache;
 import com.sampullara.mustache.MustacheException;
 import com.sampullara.mustache.MustacheTrace;
+import com.sampullara.mustache.Path;
 import com.sampullara.mustache.Scope;
 import com.sampullara.util.FutureWriter;
 
@@ -26,16 +27,22 @@ import static com.sampullara.mustache.Mustache.truncate;
 public class WriteValueCode implements Code {
   private final Mustache m;
   private final String name;
+  private final Path path;
   private final boolean encoded;
   private final int line;
 
   public WriteValueCode(Mustache m, String name, boolean encoded, int line) {
     this.m = m;
     this.name = name;
+    path = new Path(name);
     this.encoded = encoded;
     this.line = line;
   }
 
+  public String getName() {
+    return name;
+  }
+
   @Override
   public void execute(FutureWriter fw, Scope scope) throws MustacheException {
     MustacheTrace.Event event = null;
@@ -44,7 +51,7 @@ public class WriteValueCode implements Code {
       String traceName = parent == null ? scope.getClass().getName() : parent.getClass().getName();
       event = MustacheTrace.addEvent("get: " + name, traceName);
     }
-    Object value = m.getValue(scope, name);
+    Object value = m.getValue(scope, path);
     if (Mustache.trace) {
       event.end();
     }
@@ -71,11 +78,12 @@ public class WriteValueCode implements Code {
         }
       } else {
         String string = String.valueOf(value);
-        if (encoded) {
-          string = m.encode(string);
-        }
         try {
-          fw.write(string);
+          if (encoded) {
+            m.encode(string, fw);
+          } else {
+            fw.write(string);
+          }
         } catch (IOException e) {
           throw new MustacheException("Failed to write: " + e);
         }
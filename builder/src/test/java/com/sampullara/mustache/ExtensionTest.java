@@ -1,5 +1,7 @@
 package com.sampullara.mustache;
 
+import com.sampullara.mustache.code.ExtendCode;
+import com.sampullara.mustache.code.ExtendNameCode;
 import com.sampullara.util.FutureWriter;
 import junit.framework.Assert;
 import org.junit.BeforeClass;
@@ -13,7 +15,11 @@ import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.util.concurrent.ExecutionException;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class ExtensionTest {
 
@@ -71,6 +77,60 @@ public class ExtensionTest {
     Assert.assertEquals(getContents(root, "subsub.txt"), sw.toString());
   }
 
+  @Test
+  public void testSharedBase() throws MustacheException, IOException {
+    MustacheBuilder c = new MustacheBuilder(root);
+    Mustache sub = c.parseFile("sub.html");
+    Mustache subsub = c.parseFile("subsub.html");
+    Mustache base = c.parsePartial("super.html");
+    Code[] codes = base.getCompiled().clone();
+    ExtendCode first = extendCode(sub);
+    ExtendCode second = extendCode(c.parseFile("sub.html"));
+    // The base is left alone, unchanged sections are shared and replaced ones are copied
+    assertArrayEquals(codes, base.getCompiled());
+    assertNotSame(codes, first.getCompiled());
+    for (int i = 0; i < codes.length; i++) {
+      if (codes[i] instanceof ExtendNameCode && ((ExtendNameCode) codes[i]).getName().equals("head")) {
+        assertSame(codes[i], first.getCompiled()[i]);
+        assertSame(codes[i], second.getCompiled()[i]);
+      }
+    }
+    StringWriter sw = new StringWriter();
+    Scope scope = new Scope();
+    scope.put("name", "Sam");
+    scope.put("randomid", "asdlkfj");
+    subsub.execute(sw, scope);
+    assertEquals(getContents(root, "subsub.txt"), sw.toString());
+    sw = new StringWriter();
+    sub.execute(sw, scope);
+    assertEquals(getContents(root, "sub.txt"), sw.toString());
+  }
+
+  @Test
+  public void testInlined() throws MustacheException, IOException {
+    MustacheBuilder c = new MustacheBuilder(root);
+    c.setInlinePartials(true);
+    Mustache m = c.parseFile("subsub.html");
+    for (Code code : m.getCompiled()) {
+      assertFalse(code instanceof ExtendCode);
+    }
+    StringWriter sw = new StringWriter();
+    Scope scope = new Scope();
+    scope.put("name", "Sam");
+    scope.put("randomid", "asdlkfj");
+    m.execute(sw, scope);
+    assertEquals(getContents(root, "subsub.txt"), sw.toString());
+  }
+
+  private static ExtendCode extendCode(Mustache m) {
+    for (Code code : m.getCompiled()) {
+      if (code instanceof ExtendCode) {
+        return (ExtendCode) code;
+      }
+    }
+    throw new AssertionError("No extension in " + m.getName());
+  }
+
   protected String getContents(File root, String file) throws IOException {
     BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(root, file)),"UTF-8"));
     StringWriter capture = new StringWriter();
@@ -3,13 +3,19 @@ package com.sampullara.mustache;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.SettableFuture;
+import com.sampullara.mustache.code.BuilderCodeFactory;
+import com.sampullara.mustache.code.DefaultWriteCode;
+import com.sampullara.mustache.code.InlinedPartialCode;
 import com.sampullara.util.FutureWriter;
+import com.sampullara.util.MustacheExecutor;
 import com.sampullara.util.TemplateFunction;
 import junit.framework.TestCase;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
@@ -17,11 +23,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Tests for the compiler.
@@ -272,6 +284,26 @@ public class InterpreterTest extends TestCase {
     assertEquals(getContents(root, "templatelambda.txt"), sw.toString());
   }
 
+  public void testLambdaWithSections() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("{{#upper}}{{#items}}<{{.}}>{{/items}}{{^none}}!{{/none}}{{/upper}}", "lambdasections.html");
+    Scope scope = new Scope();
+    scope.put("items", Arrays.asList("a", "b"));
+    scope.put("upper", new Function<String, String>() {
+      @Override
+      public String apply(String input) {
+        return input.toUpperCase();
+      }
+    });
+    // The body is captured the same way whichever threads render it
+    for (boolean parallel : new boolean[]{true, false}) {
+      FutureWriter.setParallel(parallel ? new MustacheExecutor() : null);
+      StringWriter sw = new StringWriter();
+      m.execute(sw, scope);
+      assertEquals("<A><B>!", sw.toString());
+    }
+  }
+
   public void testSimpleWithSave() throws MustacheException, IOException, ExecutionException, InterruptedException {
     MustacheBuilder c = init();
     Mustache m = c.parseFile("simple.html");
@@ -354,6 +386,25 @@ public class InterpreterTest extends TestCase {
     assertEquals(getContents(root, "escaped.txt"), sw.toString());
   }
 
+  public void testEncode() throws IOException {
+    Mustache m = new Mustache();
+    String[][] cases = {
+            {"plain", "plain"},
+            {"a < b && c > \"d\"", "a &lt; b &amp;&amp; c &gt; &quot;d&quot;"},
+            {"&amp; &lt;&foo_1; &#10; &; a&b", "&amp; &lt;&foo_1; &amp;#10; &amp;; a&amp;b"},
+            {"&&&amp;", "&amp;&amp;&amp;"},
+            {"line\nback\\slash", "line&#10;back\\\\slash"},
+    };
+    for (String[] c : cases) {
+      assertEquals(c[1], m.encode(c[0]));
+      StringWriter sw = new StringWriter();
+      FutureWriter writer = new FutureWriter(sw);
+      m.encode(c[0], writer);
+      writer.flush();
+      assertEquals(c[1], sw.toString());
+    }
+  }
+
   public void testUnescaped() throws MustacheException, IOException {
     MustacheBuilder c = new MustacheBuilder(root);
     Mustache m = c.parseFile("unescaped.html");
@@ -438,6 +489,471 @@ public class InterpreterTest extends TestCase {
     assertTrue(PartialChanged.executed.get());
   }
 
+  public void testOutputStream() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("<p>{{#items}}\u00e9 {{.}} \u4e2d\ud83d\ude00{{/items}}</p>", "utf8.html");
+    String expected = "<p>\u00e9 a&amp;b \u4e2d\ud83d\ude00\u00e9 \ud83d\ude00 \u4e2d\ud83d\ude00</p>";
+    Scope scope = new Scope();
+    scope.put("items", Arrays.asList("a&b", "\ud83d\ude00"));
+    // Parallel writers can't pass the encoded text through
+    for (boolean parallel : new boolean[]{true, false}) {
+      FutureWriter.setParallel(parallel ? new MustacheExecutor() : null);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      m.execute(baos, scope);
+      assertEquals(expected, new String(baos.toByteArray(), "UTF-8"));
+    }
+  }
+
+  public void testStaticText() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache first = c.parse("<p>\nHello{{! comment }} there</p>{{name}}", "first.html");
+    Mustache second = c.parse(new String("<p>\nHello there</p>"), "second.html");
+    // Text around a comment becomes one code and identical text is shared
+    DefaultWriteCode a = (DefaultWriteCode) first.getCompiled()[0];
+    DefaultWriteCode b = (DefaultWriteCode) second.getCompiled()[0];
+    assertEquals("<p>\nHello there</p>", a.getText());
+    assertSame(a.getText(), b.getText());
+    assertSame(a.getBytes(), b.getBytes());
+    StringWriter sw = new StringWriter();
+    Scope scope = new Scope();
+    scope.put("name", "Sam");
+    first.execute(sw, scope);
+    assertEquals("<p>\nHello there</p>Sam", sw.toString());
+  }
+
+  public void testFragmentCache() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    FragmentCache cache = new FragmentCache(1, 0, TimeUnit.SECONDS);
+    c.setCodeFactory(new BuilderCodeFactory(cache));
+    Mustache m = c.parse("<ul>{{#cache nav user}}{{#items}}<li>{{.}}</li>{{/items}}{{/cache}}</ul>", "nav.html");
+    for (boolean parallel : new boolean[]{false, true}) {
+      FutureWriter.setParallel(parallel ? new MustacheExecutor() : null);
+      cache.invalidateAll();
+      Scope scope = new Scope();
+      scope.put("user", "a");
+      scope.put("items", Arrays.asList(1, 2));
+      assertEquals("<ul><li>1</li><li>2</li></ul>", render(m, scope));
+      // The fragment is written from the cache until it is invalidated
+      scope.put("items", Arrays.asList(3));
+      assertEquals("<ul><li>1</li><li>2</li></ul>", render(m, scope));
+      cache.invalidate("nav", "a");
+      assertEquals("<ul><li>3</li></ul>", render(m, scope));
+      scope.put("user", "b");
+      scope.put("items", Arrays.asList(4));
+      assertEquals("<ul><li>4</li></ul>", render(m, scope));
+    }
+    FutureWriter.setParallel(null);
+    assertEquals(2, cache.getHits());
+    assertEquals(6, cache.getMisses());
+    assertTrue(cache.getEvictions() > 0);
+  }
+
+  public void testFragmentCacheInvalidatedWhileRendering() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    FragmentCache cache = new FragmentCache();
+    c.setCodeFactory(new BuilderCodeFactory(cache));
+    Mustache m = c.parse("{{#cache nav user}}{{items}}{{/cache}}", "nav.html");
+    FutureWriter.setParallel(new MustacheExecutor());
+    try {
+      SettableFuture<Object> items = SettableFuture.create();
+      SettableFuture<Object> user = SettableFuture.create();
+      user.set("a");
+      Scope scope = new Scope();
+      scope.put("user", user);
+      scope.put("items", items);
+      StringWriter sw = new StringWriter();
+      FutureWriter writer = new FutureWriter(sw);
+      m.execute(writer, scope);
+      // The fragment is still being rendered when it is invalidated
+      cache.invalidate("nav", "a");
+      items.set("stale");
+      writer.flush();
+      assertEquals("stale", sw.toString());
+      assertEquals(0, cache.size());
+      // The key is the value of the future
+      assertEquals("fresh", render(m, scopeOf("user", user, "items", "fresh")));
+      assertEquals(1, cache.size());
+      cache.invalidate("nav", "a");
+      assertEquals(0, cache.size());
+    } finally {
+      FutureWriter.setParallel(null);
+    }
+  }
+
+  private static Scope scopeOf(Object... pairs) {
+    Scope scope = new Scope();
+    for (int i = 0; i < pairs.length; i += 2) {
+      scope.put(pairs[i], pairs[i + 1]);
+    }
+    return scope;
+  }
+
+  private static String render(Mustache m, Scope scope) throws MustacheException, IOException {
+    StringWriter sw = new StringWriter();
+    m.execute(sw, scope);
+    return sw.toString();
+  }
+
+  public static class PublicContext {
+    public static final String kind = "person";
+    public String name = "Sam";
+    public String nothing;
+    String hidden = "hidden";
+
+    public int age() {
+      return 40;
+    }
+
+    public String greeting(Scope scope) {
+      return "Hello " + scope.get("name");
+    }
+  }
+
+  public void testGeneratedAccessors() throws MustacheException, IOException {
+    for (String name : new String[]{"kind", "name", "nothing", "age", "greeting"}) {
+      String accessor = DefaultObjectHandler.getAccessor(PublicContext.class, name).getClass().getName();
+      assertTrue(name, accessor.startsWith("com.sampullara.mustache.accessor."));
+    }
+    // Package members can't be reached from the generated classes
+    assertTrue(DefaultObjectHandler.getAccessor(PublicContext.class, "hidden") instanceof DefaultObjectHandler.FieldAccessor);
+    MustacheBuilder c = init();
+    Mustache m = c.parse("{{kind}}: {{name}}, {{age}}, {{greeting}}, {{hidden}}{{^nothing}}!{{/nothing}}", "public.html");
+    assertEquals("person: Sam, 40, Hello Sam, hidden!", render(m, new Scope(new PublicContext())));
+  }
+
+  public void testMemo() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("{{user.name}} {{#items}}{{user.name}}{{.}},{{/items}} {{user.name}}", "memo.html");
+    final AtomicInteger calls = new AtomicInteger();
+    final Object sam = new Object() {
+      String name() {
+        calls.incrementAndGet();
+        return "sam";
+      }
+    };
+    Scope scope = new Scope(new Object() {
+      Object user = sam;
+      List<Integer> items = Arrays.asList(1, 2, 3);
+    });
+    assertEquals("sam sam1,sam2,sam3, sam", render(m, scope));
+    assertEquals(5, calls.get());
+    calls.set(0);
+    Memo memo = new Memo();
+    scope.setMemo(memo);
+    assertEquals("sam sam1,sam2,sam3, sam", render(m, scope));
+    assertEquals(1, calls.get());
+    // user is found once on the root object and name once on the user
+    assertEquals(8, memo.getSaved());
+    // Names looked up directly use the memo too
+    assertEquals("sam", scope.get("user.name"));
+    assertEquals("sam", scope.get("user.name"));
+    assertEquals(1, calls.get());
+  }
+
+  public void testPrefetch() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    c.setPrefetch(true);
+    Mustache m = c.parse("{{#user}}{{first}}{{/user}},{{second}}", "prefetch.html");
+    final AtomicInteger calls = new AtomicInteger();
+    final SettableFuture<Object> first = SettableFuture.create();
+    final SettableFuture<Object> second = SettableFuture.create();
+    final Object item = new Object() {
+      Future<Object> first() {
+        calls.incrementAndGet();
+        return first;
+      }
+    };
+    StringWriter sw = new StringWriter();
+    FutureWriter writer = new FutureWriter(sw);
+    Scope scope = new Scope(new Object() {
+      Object user = item;
+      Future<Object> second() {
+        calls.incrementAndGet();
+        return second;
+      }
+    });
+    m.execute(writer, m.prefetch(scope));
+    // Both were asked for before the render reached them and not again by the render
+    assertEquals(2, calls.get());
+    // The scope the render started with wasn't given a memo
+    assertNull(scope.getMemo());
+    second.set("2");
+    first.set("1");
+    writer.flush();
+    assertEquals("1,2", sw.toString());
+    assertEquals(2, calls.get());
+  }
+
+  public void testPrefetchOnlyStartsFutures() {
+    final AtomicInteger futures = new AtomicInteger();
+    final AtomicInteger others = new AtomicInteger();
+    final Object item = new Object() {
+      Future<Object> first() {
+        futures.incrementAndGet();
+        return SettableFuture.create();
+      }
+    };
+    Scope scope = new Scope(new Object() {
+      List<Object> items = Arrays.asList(item);
+      Object user = item;
+
+      String name() {
+        others.incrementAndGet();
+        return "sam";
+      }
+    });
+    Memo memo = new Memo();
+    scope.setMemo(memo);
+    scope.prefetch(Arrays.asList(new Path("items.first"), new Path("user.first"), new Path("name"),
+            new Path("name.length")));
+    // The collection isn't walked and methods that don't return futures aren't called
+    assertEquals(1, futures.get());
+    assertEquals(0, others.get());
+    // items, user and user.first
+    assertEquals(3, memo.size());
+  }
+
+  static class Item {
+    static final AtomicInteger loads = new AtomicInteger();
+    final int id;
+
+    Item(int id) {
+      this.id = id;
+    }
+
+    @Batch
+    static List<String> price(List<Item> items) {
+      loads.incrementAndGet();
+      List<String> prices = new ArrayList<String>();
+      for (Item item : items) {
+        prices.add("$" + item.id);
+      }
+      return prices;
+    }
+  }
+
+  public void testBatch() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("{{#items}}{{price}},{{/items}}{{#item}}{{price}}{{/item}}", "batch.html");
+    Scope scope = new Scope(new Object() {
+      List<Item> items = Arrays.asList(new Item(1), new Item(2), new Item(3));
+      Item item = new Item(4);
+    });
+    for (boolean parallel : new boolean[]{false, true}) {
+      FutureWriter.setParallel(parallel ? new MustacheExecutor() : null);
+      Item.loads.set(0);
+      assertEquals("$1,$2,$3,$4", render(m, scope));
+      // One load for the elements of each section
+      assertEquals(2, Item.loads.get());
+    }
+    FutureWriter.setParallel(null);
+
+    // The values are loaded for a window of elements at a time
+    List<Item> many = new ArrayList<Item>();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1500; i++) {
+      many.add(new Item(i));
+      expected.append("$").append(i).append(",");
+    }
+    m = c.parse("{{#items}}{{price}},{{/items}}", "batch.html");
+    Item.loads.set(0);
+    assertEquals(expected.toString(), render(m, scopeOf("items", many)));
+    assertEquals(2, Item.loads.get());
+
+    // Whether elements are batched is decided again for each render
+    m = c.parse("{{#items}}{{price}},{{/items}}", "batch.html");
+    assertEquals("1,2,", render(m, scopeOf("items", Arrays.asList(new Object() {
+      String price = "1";
+    }, new Object() {
+      String price = "2";
+    }))));
+    render(m, scopeOf("items", Arrays.asList(new Item(1), new Item(2))));
+    Item.loads.set(0);
+    assertEquals("$1,$2,", render(m, scopeOf("items", Arrays.asList(new Item(1), new Item(2)))));
+    assertEquals(1, Item.loads.get());
+  }
+
+  public void testStreaming() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("<h1>{{title}}</h1>{{slow}}<p>{{footer}}</p>", "streaming.html");
+    SettableFuture<Object> slow = SettableFuture.create();
+    Scope scope = new Scope();
+    scope.put("title", "Hello");
+    scope.put("slow", slow);
+    scope.put("footer", "Goodbye");
+    StringWriter sw = new StringWriter();
+    FutureWriter writer = new FutureWriter(sw);
+    m.execute(writer, scope);
+    // Everything before the slow value is written without waiting for flush
+    assertEquals("<h1>Hello</h1>", sw.toString());
+    assertTrue(writer.getTimeToFirstByte(TimeUnit.NANOSECONDS) >= 0);
+    slow.set("Slow");
+    assertEquals("<h1>Hello</h1>Slow", sw.toString());
+    writer.flush();
+    assertEquals("<h1>Hello</h1>Slow<p>Goodbye</p>", sw.toString());
+  }
+
+  public void testParallelPerTask() throws MustacheException, IOException {
+    FutureWriter.setParallelPerTask();
+    MustacheBuilder c = init();
+    Mustache m = c.parseFile("template_partial.html");
+    StringWriter sw = new StringWriter();
+    FutureWriter writer = new FutureWriter(sw);
+    Scope scope = new Scope();
+    scope.put("title", "Welcome");
+    scope.put("template_partial_2", new Object() {
+      String again = "Goodbye";
+    });
+    m.execute(writer, scope);
+    writer.flush();
+    assertEquals(getContents(root, "template_partial.txt"), sw.toString());
+  }
+
+  public void testParallelChunks() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("{{#items}}{{.}},{{/items}}", "chunks.html");
+    List<Integer> items = new ArrayList<Integer>();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      items.add(i);
+      expected.append(i).append(",");
+    }
+    Scope scope = new Scope();
+    scope.put("items", items);
+    final AtomicInteger tasks = new AtomicInteger();
+    FutureWriter.setParallel(new MustacheExecutor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.incrementAndGet();
+        super.execute(command);
+      }
+    });
+    try {
+      // Later renders split the section into chunks sized from the earlier ones
+      for (int i = 0; i < 3; i++) {
+        tasks.set(0);
+        StringWriter sw = new StringWriter();
+        m.execute(sw, scope);
+        assertEquals(expected.toString(), sw.toString());
+      }
+      // The cheap body is no longer given a task per element
+      assertTrue("tasks: " + tasks.get(), tasks.get() < items.size() / 2);
+    } finally {
+      FutureWriter.setParallel();
+    }
+  }
+
+  public void testParallelBlocking() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("{{#items}}{{slow}}{{/items}}", "blocking.html");
+    final AtomicReference<CountDownLatch> inFlight = new AtomicReference<CountDownLatch>();
+    Scope scope = new Scope(new Object() {
+      List<Integer> items = Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8);
+
+      String slow() throws InterruptedException {
+        // Only finishes when every element is being executed at the same time
+        CountDownLatch latch = inFlight.get();
+        latch.countDown();
+        return latch.await(10, TimeUnit.SECONDS) ? "ok" : "late";
+      }
+    });
+    // Once it is known to wait the section keeps getting a task per element
+    for (int i = 0; i < 3; i++) {
+      inFlight.set(new CountDownLatch(8));
+      StringWriter sw = new StringWriter();
+      m.execute(sw, scope);
+      assertEquals("okokokokokokokok", sw.toString());
+    }
+  }
+
+  public void testExecuteAsync() throws MustacheException, IOException, ExecutionException, InterruptedException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("<ul>{{#items}}<li>{{.}}</li>{{/items}}{{^items}}none{{/items}}</ul>", "async.html");
+    SettableFuture<Object> items = SettableFuture.create();
+    Scope scope = new Scope();
+    scope.put("items", items);
+    StringWriter sw = new StringWriter();
+    Future<Object> done = m.executeAsync(sw, scope);
+    // Neither section waits for the value
+    assertFalse(done.isDone());
+    assertEquals("<ul>", sw.toString());
+    items.set(Arrays.asList("a", "b"));
+    try {
+      done.get(1, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      fail("Not completed");
+    }
+    assertEquals("<ul><li>a</li><li>b</li></ul>", sw.toString());
+  }
+
+  public void testElementScopes() throws MustacheException, IOException {
+    FutureWriter.setParallel(null);
+    MustacheBuilder c = init();
+    Mustache m = c.parse("{{#rows}}{{id}}:{{#cols}}{{.}}{{id}}{{/cols}}{{#mark}}{{marked}}{{/mark}};{{/rows}}", "elements.html");
+    Scope scope = new Scope(new Object() {
+      List<Object> rows = Arrays.<Object>asList(
+              new Object() {
+                int id = 1;
+                List<String> cols = Arrays.asList("a", "b");
+              },
+              new Object() {
+                int id = 2;
+                List<String> cols = Arrays.asList("c");
+              });
+
+      // Values put in a row's scope are only seen by that row
+      boolean mark(Scope s) {
+        if (s.get("marked") == null) {
+          s.put("marked", "!");
+          return true;
+        }
+        return false;
+      }
+    });
+    StringWriter sw = new StringWriter();
+    m.execute(sw, scope);
+    assertEquals("1:a1b1!;2:c2!;", sw.toString());
+  }
+
+  public void testDottedPaths() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parse("{{#items}}{{a.b.c}},{{a.d}},{{title}};{{/items}}", "paths.html");
+    final Object deep = new Object() {
+      Object b = ImmutableMap.of("c", "map");
+      String d = "field";
+    };
+    Scope scope = new Scope(new Object() {
+      String title = "outer";
+      // The same call sites see different classes as they go
+      List<Object> items = Arrays.<Object>asList(
+              new Object() {
+                Object a = deep;
+              },
+              new Object() {
+                Object a = new Object() {
+                  Object b = new Object() {
+                    String c(Scope s) {
+                      return "method";
+                    }
+                  };
+                  String d() {
+                    return "getter";
+                  }
+                };
+                String title = "inner";
+              },
+              new Object() {
+                Object a = deep;
+              });
+    });
+    // Render twice to use the cached accessors
+    for (int i = 0; i < 2; i++) {
+      StringWriter sw = new StringWriter();
+      m.execute(sw, scope);
+      assertEquals("map,field,outer;method,getter,inner;map,field,outer;", sw.toString());
+    }
+  }
+
   public void testComplex() throws MustacheException, IOException {
     Scope scope = new Scope(new Object() {
       String header = "Colors";
@@ -592,6 +1108,110 @@ public class InterpreterTest extends TestCase {
     return new MustacheBuilder(root);
   }
 
+  public void testRecursivePartial() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parseFile("recursive_partial.html");
+    StringWriter sw = new StringWriter();
+    FutureWriter writer = new FutureWriter(sw);
+    Scope scope = new Scope();
+    scope.put("children", Arrays.asList(node("a", node("b"), node("c", node("d")))));
+    m.execute(writer, scope);
+    writer.flush();
+    assertEquals(getContents(root, "recursive_partial.txt"), sw.toString());
+  }
+
+  public void testSharedPartial() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache first = c.parseFile("template_partial.html");
+    Mustache second = c.parseFile("template_partial.html");
+    assertSame(first.partial("template_partial_2"), second.partial("template_partial_2"));
+  }
+
+  public void testInlinePartials() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    c.setInlinePartials(true);
+    final List<String> written = new ArrayList<String>();
+    c.setCodeFactory(new BuilderCodeFactory() {
+      @Override
+      public Code write(String s, int line) {
+        written.add(s);
+        return super.write(s, line);
+      }
+    });
+    Mustache m = c.parseFile("template_partial.html");
+    // The partial's leading text is merged with the text before it by the code factory
+    Code[] compiled = m.getCompiled();
+    assertEquals("</h1>\nAgain, ", ((DefaultWriteCode) compiled[2]).getText());
+    assertTrue(written.contains("</h1>\nAgain, "));
+    assertTrue(compiled[3] instanceof InlinedPartialCode);
+    assertEquals(1, c.getInlineStats().getPartials());
+    assertTrue(c.getInlineStats().getRemoved() > 0);
+    StringWriter sw = new StringWriter();
+    Scope scope = new Scope();
+    scope.put("title", "Welcome");
+    scope.put("template_partial_2", new Object() {
+      String again = "Goodbye";
+    });
+    m.execute(sw, scope);
+    assertEquals(getContents(root, "template_partial.txt"), sw.toString());
+
+    m = c.parseFile("recursive_partial.html");
+    sw = new StringWriter();
+    scope = new Scope();
+    scope.put("children", Arrays.asList(node("a", node("b"), node("c", node("d")))));
+    m.execute(sw, scope);
+    assertEquals(getContents(root, "recursive_partial.txt"), sw.toString());
+  }
+
+  // Each node passes its children to the partial by the partial's name
+  private static Map<String, Object> node(String name, Map... children) {
+    Map<String, Object> node = new HashMap<String, Object>();
+    node.put("name", name);
+    node.put("recursive_partial", ImmutableMap.of("children", Arrays.asList(children)));
+    return node;
+  }
+
+  public void testCached() throws MustacheException, IOException {
+    MustacheBuilder c = init();
+    Mustache m = c.parseCached("template_partial.html");
+    assertSame(m, c.parseCached("template_partial.html"));
+    c.invalidate();
+    assertNotSame(m, c.parseCached("template_partial.html"));
+  }
+
+  public void testCachedChanged() throws MustacheException, IOException, InterruptedException {
+    File dir = File.createTempFile("mustache", "");
+    assertTrue(dir.delete() && dir.mkdir());
+    File partial = new File(dir, "partial.html");
+    try {
+      writeFile(new File(dir, "main.html"), "[{{>partial}}]");
+      writeFile(partial, "one");
+      MustacheBuilder c = new MustacheBuilder(dir);
+      c.setCheckInterval(0);
+      Mustache m = c.parseCached("main.html");
+      assertSame(m, c.parseCached("main.html"));
+      writeFile(partial, "two");
+      assertTrue(partial.setLastModified(partial.lastModified() + 2000));
+      m = c.parseCached("main.html");
+      StringWriter sw = new StringWriter();
+      FutureWriter writer = new FutureWriter(sw);
+      m.execute(writer, new Scope());
+      writer.flush();
+      assertEquals("[two]", sw.toString());
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  private void writeFile(File file, String contents) throws IOException {
+    FileWriter fw = new FileWriter(file);
+    fw.write(contents);
+    fw.close();
+  }
+
   protected String getContents(File root, String file) throws IOException {
     BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(root, file)),"UTF-8"));
     StringWriter capture = new StringWriter();
@@ -0,0 +1,40 @@
+package com.sampullara.mustache.compiler;
+
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheBuilder;
+import com.sampullara.mustache.MustacheContext;
+import com.sampullara.mustache.MustacheException;
+
+import java.io.File;
+import java.io.Reader;
+
+/**
+ * Builds mustaches the same way as the MustacheBuilder and then compiles the resulting
+ * code to bytecode. Partials are built through this builder as well so they are also
+ * compiled.
+ */
+public class CompilingMustacheBuilder extends MustacheBuilder {
+
+  private MustacheCompiler compiler = new MustacheCompiler();
+
+  public CompilingMustacheBuilder() {
+    super();
+  }
+
+  public CompilingMustacheBuilder(String classpath) {
+    super(classpath);
+  }
+
+  public CompilingMustacheBuilder(File root) {
+    super(root);
+  }
+
+  public CompilingMustacheBuilder(MustacheContext mc) {
+    super(mc);
+  }
+
+  @Override
+  public Mustache build(Reader br, String path) throws MustacheException {
+    return compiler.compile(super.build(br, path), this);
+  }
+}
@@ -0,0 +1,339 @@
+package com.sampullara.mustache.compiler;
+
+import com.sampullara.mustache.Code;
+import com.sampullara.mustache.FunctionIterator;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.mustache.MustacheJava;
+import com.sampullara.mustache.Scope;
+import com.sampullara.mustache.code.DefaultWriteCode;
+import com.sampullara.mustache.code.EOFCode;
+import com.sampullara.mustache.code.InvertedIterableCode;
+import com.sampullara.mustache.code.IterableCode;
+import com.sampullara.mustache.code.SubCode;
+import com.sampullara.mustache.code.WriteValueCode;
+import com.sampullara.util.FutureWriter;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Turns the Code[] tree built by the MustacheBuilder into a generated subclass of the
+ * Mustache that built it. Static text becomes constant writes, values become direct calls
+ * on their WriteValueCode and simple sections become real loops over generated methods.
+ * Anything we don't know how to generate is still executed through its Code.
+ */
+public class MustacheCompiler implements Opcodes {
+
+  private static Logger logger = Logger.getLogger(Mustache.class.getName());
+
+  // Keep the generated methods well under the 64k bytecode limit
+  private static final int MAX_CODES_PER_METHOD = 500;
+
+  private static final String PACKAGE = "com/sampullara/mustache/compiler/";
+  private static final AtomicInteger counter = new AtomicInteger();
+
+  private static final String MUSTACHE = Type.getInternalName(Mustache.class);
+  private static final String CODE = Type.getInternalName(Code.class);
+  private static final String SUBCODE = Type.getInternalName(SubCode.class);
+  private static final String WRITE_VALUE_CODE = Type.getInternalName(WriteValueCode.class);
+  private static final String DEFAULT_WRITE_CODE = Type.getInternalName(DefaultWriteCode.class);
+  private static final String FUTURE_WRITER = Type.getInternalName(FutureWriter.class);
+  private static final String SCOPE = Type.getInternalName(Scope.class);
+  private static final String ITERABLE = Type.getInternalName(Iterable.class);
+  private static final String ITERATOR = Type.getInternalName(Iterator.class);
+  private static final String FUNCTION_ITERATOR = Type.getInternalName(FunctionIterator.class);
+
+  private static final String CODES_DESC = Type.getDescriptor(Code[].class);
+  private static final String FUTURE_WRITER_DESC = Type.getDescriptor(FutureWriter.class);
+  private static final String EXECUTE_DESC = "(" + FUTURE_WRITER_DESC + Type.getDescriptor(Scope.class) + ")V";
+  private static final String ITERABLE_DESC = "(" + Type.getDescriptor(Scope.class) + ")" + Type.getDescriptor(Iterable.class);
+  private static final String[] EXCEPTIONS = new String[]{Type.getInternalName(MustacheException.class)};
+
+  /**
+   * Compile the mustache to bytecode. If it can't be compiled, for instance because
+   * its class can't be extended, the original interpreted mustache is returned.
+   *
+   * @param m  the mustache as built by the MustacheBuilder
+   * @param mj the builder that will be used for partials
+   * @return a compiled mustache that is equivalent to m
+   */
+  public Mustache compile(Mustache m, MustacheJava mj) throws MustacheException {
+    Class<? extends Mustache> superclass = m.getClass();
+    if (!isExtendable(superclass)) {
+      logger.fine("Cannot compile " + m.getName() + ", " + superclass.getName() + " is not extendable");
+      return m;
+    }
+    String className = PACKAGE + "CompiledMustache$" + counter.incrementAndGet();
+    byte[] bytes = new Generator(m, className, Type.getInternalName(superclass)).generate();
+    try {
+      GeneratedClassLoader loader = new GeneratedClassLoader(superclass.getClassLoader());
+      Class<?> aClass = loader.define(className.replace('/', '.'), bytes);
+      Mustache compiled = (Mustache) aClass.newInstance();
+      aClass.getField("$c").set(compiled, generatorCodes(m));
+      compiled.setName(m.getName());
+      compiled.setMustacheJava(mj);
+      compiled.setCompiled(Arrays.asList(m.getCompiled()));
+      return compiled;
+    } catch (Throwable e) {
+      logger.log(Level.WARNING, "Failed to compile " + m.getName() + ", falling back to interpreter", e);
+      return m;
+    }
+  }
+
+  private static boolean isExtendable(Class<? extends Mustache> aClass) {
+    int modifiers = aClass.getModifiers();
+    if (!Modifier.isPublic(modifiers) || Modifier.isFinal(modifiers)) {
+      return false;
+    }
+    if (aClass.getEnclosingClass() != null && !Modifier.isStatic(modifiers)) {
+      return false;
+    }
+    try {
+      Constructor<? extends Mustache> constructor = aClass.getDeclaredConstructor();
+      int cm = constructor.getModifiers();
+      return Modifier.isPublic(cm) || Modifier.isProtected(cm);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The generated code references codes by their position in a depth first walk of the tree.
+   */
+  private static Code[] generatorCodes(Mustache m) {
+    List<Code> codes = new ArrayList<Code>();
+    collect(m.getCompiled(), codes);
+    return codes.toArray(new Code[codes.size()]);
+  }
+
+  private static void collect(Code[] codes, List<Code> list) {
+    for (Code code : codes) {
+      list.add(code);
+      if (isLoop(code)) {
+        collect(((SubCode) code).getCodes(), list);
+      }
+    }
+  }
+
+  private static boolean isLoop(Code code) {
+    Class<? extends Code> aClass = code.getClass();
+    return aClass == IterableCode.class || aClass == InvertedIterableCode.class;
+  }
+
+  private static class Generator {
+    private final Mustache m;
+    private final String className;
+    private final String superName;
+    private final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    private int index;
+    private int methods;
+
+    Generator(Mustache m, String className, String superName) {
+      this.m = m;
+      this.className = className;
+      this.superName = superName;
+    }
+
+    byte[] generate() {
+      // Version 49 class files don't require stack map frames
+      cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, superName, null);
+      cw.visitSource(m.getName(), null);
+      cw.visitField(ACC_PUBLIC, "$c", CODES_DESC, null, null).visitEnd();
+
+      MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+      init.visitCode();
+      init.visitVarInsn(ALOAD, 0);
+      init.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V");
+      init.visitInsn(RETURN);
+      init.visitMaxs(0, 0);
+      init.visitEnd();
+
+      MethodVisitor execute = cw.visitMethod(ACC_PUBLIC, "execute", EXECUTE_DESC, null, EXCEPTIONS);
+      execute.visitCode();
+      block(execute, m.getCompiled());
+      execute.visitInsn(RETURN);
+      execute.visitMaxs(0, 0);
+      execute.visitEnd();
+
+      cw.visitEnd();
+      return cw.toByteArray();
+    }
+
+    /**
+     * Generate a block of codes using the writer in local 1 and the scope in local 2,
+     * splitting it across methods if it is too large for one.
+     */
+    private void block(MethodVisitor mv, Code[] codes) {
+      if (codes.length <= MAX_CODES_PER_METHOD) {
+        codes(mv, codes);
+      } else {
+        for (int i = 0; i < codes.length; i += MAX_CODES_PER_METHOD) {
+          Code[] chunk = Arrays.copyOfRange(codes, i, Math.min(codes.length, i + MAX_CODES_PER_METHOD));
+          invokeMethod(mv, 1, 2, method(chunk));
+        }
+      }
+    }
+
+    /**
+     * Generate a private method that executes the codes, returning its name.
+     */
+    private String method(Code[] codes) {
+      String name = "codes$" + methods++;
+      MethodVisitor mv = cw.visitMethod(ACC_PRIVATE, name, EXECUTE_DESC, null, EXCEPTIONS);
+      mv.visitCode();
+      block(mv, codes);
+      mv.visitInsn(RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+      return name;
+    }
+
+    private void codes(MethodVisitor mv, Code[] codes) {
+      for (Code code : codes) {
+        int current = index++;
+        if (Mustache.debug) {
+          Label label = new Label();
+          mv.visitLabel(label);
+          mv.visitLineNumber(code.getLine(), label);
+          mv.visitFieldInsn(GETSTATIC, MUSTACHE, "line", "Ljava/lang/ThreadLocal;");
+          push(mv, code.getLine());
+          mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+          mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/ThreadLocal", "set", "(Ljava/lang/Object;)V");
+        }
+        Class<? extends Code> aClass = code.getClass();
+        if (aClass == EOFCode.class) {
+          // Nothing to do at the end of the file
+        } else if (aClass == DefaultWriteCode.class) {
+          // The code holds the text already encoded for byte oriented writers
+          loadCode(mv, current);
+          mv.visitTypeInsn(CHECKCAST, DEFAULT_WRITE_CODE);
+          mv.visitVarInsn(ALOAD, 1);
+          mv.visitVarInsn(ALOAD, 2);
+          mv.visitMethodInsn(INVOKEVIRTUAL, DEFAULT_WRITE_CODE, "execute", EXECUTE_DESC);
+        } else if (aClass == WriteValueCode.class) {
+          loadCode(mv, current);
+          mv.visitTypeInsn(CHECKCAST, WRITE_VALUE_CODE);
+          mv.visitVarInsn(ALOAD, 1);
+          mv.visitVarInsn(ALOAD, 2);
+          mv.visitMethodInsn(INVOKEVIRTUAL, WRITE_VALUE_CODE, "execute", EXECUTE_DESC);
+        } else if (isLoop(code)) {
+          loop(mv, (SubCode) code, current);
+        } else {
+          loadCode(mv, current);
+          mv.visitVarInsn(ALOAD, 1);
+          mv.visitVarInsn(ALOAD, 2);
+          mv.visitMethodInsn(INVOKEINTERFACE, CODE, "execute", EXECUTE_DESC);
+        }
+      }
+    }
+
+    /**
+     * Sections become a loop over the iterable calling a generated method for the body. Parallel
+     * writers and functions need the SubCode machinery so they are handed back to the code.
+     */
+    private void loop(MethodVisitor mv, SubCode code, int current) {
+      // Locals: 3 writer, 4 iterable, 5 iterator, 6 element scope
+      mv.visitVarInsn(ALOAD, 1);
+      mv.visitVarInsn(ASTORE, 3);
+      // The code looks up the value with its own path
+      loadCode(mv, current);
+      mv.visitTypeInsn(CHECKCAST, SUBCODE);
+      mv.visitVarInsn(ALOAD, 2);
+      mv.visitMethodInsn(INVOKEVIRTUAL, SUBCODE, "iterable", ITERABLE_DESC);
+      mv.visitVarInsn(ASTORE, 4);
+
+      Label fallback = new Label();
+      Label end = new Label();
+      Label loop = new Label();
+      mv.visitVarInsn(ALOAD, 3);
+      mv.visitMethodInsn(INVOKEVIRTUAL, FUTURE_WRITER, "isParallel", "()Z");
+      mv.visitJumpInsn(IFNE, fallback);
+      mv.visitVarInsn(ALOAD, 4);
+      mv.visitTypeInsn(INSTANCEOF, FUNCTION_ITERATOR);
+      mv.visitJumpInsn(IFNE, fallback);
+
+      // The body is generated before the loop is closed so that code indexes stay depth first
+      String body = method(code.getCodes());
+      // The code reuses the element scopes or loads their Batch values
+      loadCode(mv, current);
+      mv.visitTypeInsn(CHECKCAST, SUBCODE);
+      mv.visitVarInsn(ALOAD, 3);
+      mv.visitVarInsn(ALOAD, 4);
+      mv.visitMethodInsn(INVOKEVIRTUAL, SUBCODE, "scopes", "(" + FUTURE_WRITER_DESC + "L" + ITERABLE + ";)Ljava/util/Iterator;");
+      mv.visitVarInsn(ASTORE, 5);
+      mv.visitLabel(loop);
+      mv.visitVarInsn(ALOAD, 5);
+      mv.visitMethodInsn(INVOKEINTERFACE, ITERATOR, "hasNext", "()Z");
+      mv.visitJumpInsn(IFEQ, end);
+      mv.visitVarInsn(ALOAD, 5);
+      mv.visitMethodInsn(INVOKEINTERFACE, ITERATOR, "next", "()Ljava/lang/Object;");
+      mv.visitTypeInsn(CHECKCAST, SCOPE);
+      mv.visitVarInsn(ASTORE, 6);
+      invokeMethod(mv, 3, 6, body);
+      mv.visitJumpInsn(GOTO, loop);
+
+      mv.visitLabel(fallback);
+      loadCode(mv, current);
+      mv.visitTypeInsn(CHECKCAST, SUBCODE);
+      mv.visitVarInsn(ALOAD, 3);
+      mv.visitVarInsn(ALOAD, 4);
+      mv.visitMethodInsn(INVOKEVIRTUAL, SUBCODE, "execute", "(" + FUTURE_WRITER_DESC + "L" + ITERABLE + ";)V");
+      mv.visitLabel(end);
+    }
+
+    private void invokeMethod(MethodVisitor mv, int writer, int scope, String name) {
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitVarInsn(ALOAD, writer);
+      mv.visitVarInsn(ALOAD, scope);
+      mv.visitMethodInsn(INVOKESPECIAL, className, name, EXECUTE_DESC);
+    }
+
+    private void loadCode(MethodVisitor mv, int current) {
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitFieldInsn(GETFIELD, className, "$c", CODES_DESC);
+      push(mv, current);
+      mv.visitInsn(AALOAD);
+    }
+
+    private static void push(MethodVisitor mv, int value) {
+      if (value >= -1 && value <= 5) {
+        mv.visitInsn(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        mv.visitIntInsn(BIPUSH, value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        mv.visitIntInsn(SIPUSH, value);
+      } else {
+        mv.visitLdcInsn(value);
+      }
+    }
+  }
+
+  private static class GeneratedClassLoader extends ClassLoader {
+    GeneratedClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      // The template's class loader may not be able to see the compiler support classes
+      return MustacheCompiler.class.getClassLoader().loadClass(name);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package com.sampullara.mustache.compiler;
+
+import com.google.common.base.Function;
+import com.sampullara.mustache.Batch;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheBuilder;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.mustache.Scope;
+import com.sampullara.util.FutureWriter;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiled mustaches have to produce exactly what the interpreter produces.
+ */
+public class CompilerTest extends TestCase {
+  private File root;
+
+  public void testSimple() throws MustacheException, IOException {
+    Mustache m = new CompilingMustacheBuilder(root).parseFile("simple.html");
+    assertTrue("Should have been compiled", m.getClass() != Mustache.class);
+    assertEquals(getContents(root, "simple.txt"), execute(m, new Object() {
+      String name = "Chris";
+      int value = 10000;
+
+      int taxed_value() {
+        return (int) (this.value - (this.value * 0.4));
+      }
+
+      boolean in_ca = true;
+    }));
+  }
+
+  public void testComplex() throws MustacheException, IOException {
+    Mustache m = new CompilingMustacheBuilder(root).parseFile("complex.html");
+    assertEquals(getContents(root, "complex.txt"), execute(m, new ComplexObject()));
+  }
+
+  public void testComplexParallel() throws MustacheException, IOException {
+    FutureWriter.setParallel();
+    try {
+      Mustache m = new CompilingMustacheBuilder(root).parseFile("complex.html");
+      assertEquals(getContents(root, "complex.txt"), execute(m, new ComplexObject()));
+    } finally {
+      FutureWriter.setParallel(null);
+    }
+  }
+
+  public void testInverted() throws MustacheException, IOException {
+    Mustache m = new CompilingMustacheBuilder(root).parseFile("inverted_section.html");
+    assertEquals(getContents(root, "inverted_section.txt"), execute(m, new Object() {
+      String name() {
+        return "Bear > Shark";
+      }
+
+      ArrayList repo = new ArrayList();
+    }));
+  }
+
+  public void testPartial() throws MustacheException, IOException {
+    Mustache m = new CompilingMustacheBuilder(root).parseFile("template_partial.html");
+    Scope scope = new Scope();
+    scope.put("title", "Welcome");
+    scope.put("template_partial_2", new Object() {
+      String again = "Goodbye";
+    });
+    assertEquals(getContents(root, "template_partial.txt"), execute(m, scope));
+  }
+
+  public void testLambda() throws MustacheException, IOException {
+    Mustache m = new CompilingMustacheBuilder(root).parseFile("lambda.html");
+    assertEquals(getContents(root, "lambda.txt"), execute(m, new Object() {
+      Function<String, String> translate = new Function<String, String>() {
+        @Override
+        public String apply(String input) {
+          if (input.equals("Hello")) {
+            return "Hola";
+          }
+          if (input.equals("Hola")) {
+            return "Hello";
+          }
+          return null;
+        }
+      };
+    }));
+  }
+
+  public void testMatchesInterpreter() throws MustacheException, IOException {
+    String[] files = {"simple_array.html", "escaped.html", "comments.html", "two_in_a_row.html",
+            "reuse_of_enumerables.html", "section_as_context.html"};
+    for (String file : files) {
+      Mustache compiled = new CompilingMustacheBuilder(root).parseFile(file);
+      Mustache interpreted = new MustacheBuilder(root).parseFile(file);
+      Scope scope = new Scope();
+      scope.put("list", Arrays.asList(1, 2, 3));
+      scope.put("title", "Bear > Shark");
+      scope.put("terms", Arrays.asList("a", "b"));
+      assertEquals(file, execute(interpreted, scope), execute(compiled, scope));
+    }
+  }
+
+  public void testIdentity() throws MustacheException, IOException {
+    Mustache m = new CompilingMustacheBuilder(root).parseFile("simple.html");
+    StringWriter sw = new StringWriter();
+    FutureWriter writer = new FutureWriter(sw);
+    m.identity(writer);
+    writer.flush();
+    assertEquals(getContents(root, "simple.html").replaceAll("\\s+", ""), sw.toString().replaceAll(
+            "\\s+", ""));
+  }
+
+  public void testLargeTemplate() throws MustacheException, IOException {
+    StringBuilder template = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      template.append("{{#list}}{{.}}{{/list}} {{title}}\n");
+      expected.append("123 Bear &gt; Shark\n");
+    }
+    Mustache m = new CompilingMustacheBuilder(root).parse(template.toString(), "large.html");
+    assertTrue("Should have been compiled", m.getClass() != Mustache.class);
+    Scope scope = new Scope();
+    scope.put("list", Arrays.asList(1, 2, 3));
+    scope.put("title", "Bear > Shark");
+    assertEquals(expected.toString(), execute(m, scope));
+  }
+
+  static class Item {
+    static final AtomicInteger loads = new AtomicInteger();
+    final int id;
+
+    Item(int id) {
+      this.id = id;
+    }
+
+    @Batch
+    static List<String> price(List<Item> items) {
+      loads.incrementAndGet();
+      List<String> prices = new ArrayList<String>();
+      for (Item item : items) {
+        prices.add("$" + item.id);
+      }
+      return prices;
+    }
+  }
+
+  public void testBatch() throws MustacheException, IOException {
+    Mustache m = new CompilingMustacheBuilder(root).parse("{{#items}}{{price}},{{/items}}", "batch.html");
+    assertTrue("Should have been compiled", m.getClass() != Mustache.class);
+    Scope scope = new Scope();
+    scope.put("items", Arrays.asList(new Item(1), new Item(2), new Item(3)));
+    for (int i = 0; i < 2; i++) {
+      Item.loads.set(0);
+      assertEquals("$1,$2,$3,", execute(m, scope));
+      // The compiled loop loads the prices of all of the elements at once
+      assertEquals(1, Item.loads.get());
+    }
+  }
+
+  private String execute(Mustache m, Object context) throws MustacheException, IOException {
+    StringWriter sw = new StringWriter();
+    FutureWriter writer = new FutureWriter(sw);
+    m.execute(writer, context instanceof Scope ? (Scope) context : new Scope(context));
+    writer.flush();
+    return sw.toString();
+  }
+
+  private static class ComplexObject {
+    String header = "Colors";
+    List<Color> item = Arrays.asList(
+            new Color("red", true, "#Red"),
+            new Color("green", false, "#Green"),
+            new Color("blue", false, "#Blue")
+    );
+
+    boolean link(Scope s) {
+      return !((Boolean) s.get("current"));
+    }
+
+    boolean list(Scope s) {
+      return ((List) s.get("item")).size() != 0;
+    }
+
+    boolean empty(Scope s) {
+      return ((List) s.get("item")).size() == 0;
+    }
+
+    private static class Color {
+      Color(String name, boolean current, String url) {
+        this.name = name;
+        this.current = current;
+        this.url = url;
+      }
+
+      String name;
+      boolean current;
+      String url;
+    }
+  }
+
+  protected String getContents(File root, String file) throws IOException {
+    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(root, file)), "UTF-8"));
+    StringWriter capture = new StringWriter();
+    char[] buffer = new char[8192];
+    int read;
+    while ((read = br.read(buffer)) != -1) {
+      capture.write(buffer, 0, read);
+    }
+    return capture.toString();
+  }
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    File file = new File("src/test/resources");
+    root = new File(file, "simple.html").exists() ? file : new File("../src/test/resources");
+  }
+}
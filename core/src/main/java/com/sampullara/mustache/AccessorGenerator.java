@@ -0,0 +1,185 @@
+package com.sampullara.mustache;
+
+import com.google.common.collect.MapMaker;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates an accessor class for a field or method that reads the field or calls the method
+ * directly, so that the JIT can inline the lookup instead of going through reflection. The
+ * classes are defined in a class loader of their own under the loader of the context class,
+ * so only public members of public classes can be used. Everything else is left to the
+ * reflective accessors.
+ */
+final class AccessorGenerator implements Opcodes {
+  private static Logger logger = Logger.getLogger(Mustache.class.getName());
+
+  private static final String PACKAGE = "com/sampullara/mustache/accessor/";
+  private static final AtomicInteger counter = new AtomicInteger();
+
+  private static final String ACCESSOR = Type.getInternalName(DefaultObjectHandler.Accessor.class);
+  private static final String FIELD_ACCESSOR = Type.getInternalName(DefaultObjectHandler.FieldValueAccessor.class);
+  private static final String SCOPE_ACCESSOR = Type.getInternalName(DefaultObjectHandler.ScopeAccessor.class);
+  private static final String GET_DESC = "(Ljava/lang/Object;" + Type.getDescriptor(Scope.class) + ")Ljava/lang/Object;";
+  private static final String[] EXCEPTIONS = new String[]{"java/lang/Exception"};
+
+  // A loader for each class loader of the context classes, held like the accessor cache
+  private static final ConcurrentMap<ClassLoader, AccessorLoader> loaders =
+          new MapMaker().weakKeys().softValues().makeMap();
+
+  private AccessorGenerator() {
+  }
+
+  /**
+   * Whether a generated class can use the member directly.
+   */
+  static boolean canGenerate(Member member) {
+    return Modifier.isPublic(member.getModifiers()) &&
+            Modifier.isPublic(member.getDeclaringClass().getModifiers());
+  }
+
+  /**
+   * The generated accessor for the field, or null if it couldn't be generated.
+   */
+  static DefaultObjectHandler.Accessor generate(Field field) {
+    return generate(field, field.getType(), FIELD_ACCESSOR);
+  }
+
+  /**
+   * The generated accessor for a method that takes nothing or a Scope, or null if it couldn't
+   * be generated.
+   */
+  static DefaultObjectHandler.Accessor generate(Method method) {
+    boolean scope = method.getParameterTypes().length == 1;
+    return generate(method, method.getReturnType(), scope ? SCOPE_ACCESSOR : ACCESSOR);
+  }
+
+  private static DefaultObjectHandler.Accessor generate(Member member, Class type, String superName) {
+    if (!canGenerate(member)) {
+      return null;
+    }
+    String className = PACKAGE + "Accessor" + counter.incrementAndGet();
+    try {
+      byte[] bytes = bytes(className, superName, member, type);
+      Class<?> aClass = loader(member.getDeclaringClass()).define(className.replace('/', '.'), bytes);
+      return (DefaultObjectHandler.Accessor) aClass.getConstructor(Class.class).newInstance(type);
+    } catch (Throwable e) {
+      logger.log(Level.FINE, "Failed to generate an accessor for " + member, e);
+      return null;
+    }
+  }
+
+  private static AccessorLoader loader(Class aClass) {
+    ClassLoader parent = aClass.getClassLoader();
+    if (parent == null) {
+      parent = AccessorGenerator.class.getClassLoader();
+    }
+    AccessorLoader loader = loaders.get(parent);
+    if (loader == null) {
+      loader = new AccessorLoader(parent);
+      AccessorLoader existing = loaders.putIfAbsent(parent, loader);
+      if (existing != null) {
+        loader = existing;
+      }
+    }
+    return loader;
+  }
+
+  private static byte[] bytes(String className, String superName, Member member, Class type) {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    // Version 49 class files don't require stack map frames
+    cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, superName, null);
+
+    MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "(Ljava/lang/Class;)V", null, null);
+    init.visitCode();
+    init.visitVarInsn(ALOAD, 0);
+    init.visitVarInsn(ALOAD, 1);
+    init.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "(Ljava/lang/Class;)V");
+    init.visitInsn(RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+
+    MethodVisitor get = cw.visitMethod(ACC_PUBLIC, "get", GET_DESC, null, EXCEPTIONS);
+    get.visitCode();
+    String owner = Type.getInternalName(member.getDeclaringClass());
+    boolean isStatic = Modifier.isStatic(member.getModifiers());
+    if (!isStatic) {
+      get.visitVarInsn(ALOAD, 1);
+      get.visitTypeInsn(CHECKCAST, owner);
+    }
+    if (member instanceof Field) {
+      get.visitFieldInsn(isStatic ? GETSTATIC : GETFIELD, owner, member.getName(), Type.getDescriptor(type));
+    } else {
+      Method method = (Method) member;
+      if (method.getParameterTypes().length == 1) {
+        get.visitVarInsn(ALOAD, 2);
+      }
+      get.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKEVIRTUAL, owner, method.getName(),
+              Type.getMethodDescriptor(method));
+    }
+    if (type == void.class) {
+      get.visitVarInsn(ALOAD, 0);
+      get.visitFieldInsn(GETFIELD, ACCESSOR, "nullValue", "Ljava/lang/Object;");
+    } else if (type.isPrimitive()) {
+      box(get, Type.getType(type));
+    } else {
+      // A null value becomes the null value of the accessor
+      Label done = new Label();
+      get.visitInsn(DUP);
+      get.visitJumpInsn(IFNONNULL, done);
+      get.visitInsn(POP);
+      get.visitVarInsn(ALOAD, 0);
+      get.visitFieldInsn(GETFIELD, ACCESSOR, "nullValue", "Ljava/lang/Object;");
+      get.visitLabel(done);
+    }
+    get.visitInsn(ARETURN);
+    get.visitMaxs(0, 0);
+    get.visitEnd();
+
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static void box(MethodVisitor mv, Type type) {
+    String boxed;
+    switch (type.getSort()) {
+      case Type.BOOLEAN: boxed = "java/lang/Boolean"; break;
+      case Type.CHAR: boxed = "java/lang/Character"; break;
+      case Type.BYTE: boxed = "java/lang/Byte"; break;
+      case Type.SHORT: boxed = "java/lang/Short"; break;
+      case Type.INT: boxed = "java/lang/Integer"; break;
+      case Type.FLOAT: boxed = "java/lang/Float"; break;
+      case Type.LONG: boxed = "java/lang/Long"; break;
+      default: boxed = "java/lang/Double"; break;
+    }
+    mv.visitMethodInsn(INVOKESTATIC, boxed, "valueOf", "(" + type.getDescriptor() + ")L" + boxed + ";");
+  }
+
+  private static class AccessorLoader extends ClassLoader {
+    AccessorLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      // The context's class loader may not be able to see the accessor classes
+      return AccessorGenerator.class.getClassLoader().loadClass(name);
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.sampullara.mustache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a static method that looks up a value for many objects of its class in one call,
+ * for example one query for the details of every item on a page:
+ * <pre>
+ *   &#64;Batch
+ *   static List&lt;Details&gt; details(List&lt;Item&gt; items)
+ * </pre>
+ * The method is found by its name like any other member. It is given the objects and returns
+ * their values in the same order, or a ListenableFuture of them. When a section iterates over
+ * such objects the values are looked up for all of them before its body is executed and the
+ * body finds them in the memo of the render. Elsewhere the method is called for one object.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Batch {
+}
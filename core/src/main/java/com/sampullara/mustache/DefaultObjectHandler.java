@@ -1,13 +1,22 @@
 package com.sampullara.mustache;
 
+import com.google.common.base.Function;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -20,24 +29,161 @@ import java.util.logging.Logger;
  * Time: 3:02 PM
  */
 public class DefaultObjectHandler implements ObjectHandler {
-  // Create a map if one doesn't already exist -- MapMaker.computerHashMap seems to be
-  // very inefficient, had to improvise
-  protected static Map<Class, Map<String, AccessibleObject>> cache = new HashMap<Class, Map<String, AccessibleObject>>() {
-    public synchronized Map<String, AccessibleObject> get(Object c) {
-      Map<String, AccessibleObject> o = super.get(c);
-      if (o == null) {
-        o = new HashMap<String, AccessibleObject>();
-        put((Class) c, o);
+  // Members are resolved once per class into accessors. Classes are weakly held so that
+  // redeployed class loaders can be collected and the accessor maps are softly held because
+  // the accessors reference the class. Lookups never lock.
+  protected static ConcurrentMap<Class, Map<String, Accessor>> cache =
+          new MapMaker().weakKeys().softValues().makeMap();
+  // The handlers generated for the classes annotated with TemplateContext, held like the cache
+  private static final ConcurrentMap<Class, GeneratedObjectHandler> generated =
+          new MapMaker().weakKeys().softValues().makeMap();
+  private static Logger logger = Logger.getLogger(Mustache.class.getName());
+
+  private static final Object[] NO_ARGUMENTS = new Object[0];
+
+  /**
+   * A member resolved once for a class. Everything about how it is called and what a null
+   * result means is worked out up front so that a lookup is a single call. The members that
+   * can be used directly get a generated subclass that reads the field or calls the method
+   * without reflection.
+   */
+  protected abstract static class Accessor {
+    // The declared type of the field or of what the method returns
+    protected final Class type;
+    // What a null value becomes so that we stop looking further up the scope
+    protected final Object nullValue;
+
+    protected Accessor(Class type) {
+      this.type = type;
+      nullValue = type.isAssignableFrom(Iterable.class) ? Scope.EMPTY : Scope.NULL;
+    }
+
+    public abstract Object get(Object parent, Scope scope) throws Exception;
+  }
+
+  /**
+   * An accessor that only reads a field, so it is cheap and has no side effects.
+   */
+  protected abstract static class FieldValueAccessor extends Accessor {
+    protected FieldValueAccessor(Class type) {
+      super(type);
+    }
+  }
+
+  protected static final class FieldAccessor extends FieldValueAccessor {
+    private final Field field;
+
+    public FieldAccessor(Field field) {
+      super(field.getType());
+      this.field = field;
+    }
+
+    @Override
+    public Object get(Object parent, Scope scope) throws IllegalAccessException {
+      Object value = field.get(parent);
+      return value == null ? nullValue : value;
+    }
+  }
+
+  protected static final class MethodAccessor extends Accessor {
+    private final Method method;
+
+    public MethodAccessor(Method method) {
+      super(method.getReturnType());
+      this.method = method;
+    }
+
+    @Override
+    public Object get(Object parent, Scope scope) throws Exception {
+      Object value = method.invoke(parent, NO_ARGUMENTS);
+      return value == null ? nullValue : value;
+    }
+  }
+
+  /**
+   * An accessor whose value depends on the scope it is called with. It is given the scope
+   * around the value and its values are never remembered.
+   */
+  protected abstract static class ScopeAccessor extends Accessor {
+    protected ScopeAccessor(Class type) {
+      super(type);
+    }
+  }
+
+  protected static final class ScopeMethodAccessor extends ScopeAccessor {
+    private final Method method;
+
+    public ScopeMethodAccessor(Method method) {
+      super(method.getReturnType());
+      this.method = method;
+    }
+
+    @Override
+    public Object get(Object parent, Scope scope) throws Exception {
+      Object value = method.invoke(parent, scope);
+      return value == null ? nullValue : value;
+    }
+  }
+
+  /**
+   * A static method marked with {@link Batch} that looks up the values of many objects at once.
+   */
+  protected static final class BatchAccessor extends Accessor {
+    private final Method method;
+
+    public BatchAccessor(Method method) {
+      super(Object.class);
+      this.method = method;
+    }
+
+    @Override
+    public Object get(Object parent, Scope scope) throws Exception {
+      return load(Collections.singletonList(parent)).get(0);
+    }
+
+    /**
+     * The values of the objects in the same order. If the method returns a future each value
+     * is a future of the value of its object.
+     */
+    public List<Object> load(List<Object> parents) throws Exception {
+      final int size = parents.size();
+      Object result = method.invoke(null, parents);
+      List<Object> values = new ArrayList<Object>(size);
+      if (result instanceof ListenableFuture) {
+        ListenableFuture<List> loaded = (ListenableFuture<List>) result;
+        for (int i = 0; i < size; i++) {
+          final int index = i;
+          values.add(Futures.transform(loaded, new Function<List, Object>() {
+            @Override
+            public Object apply(List list) {
+              return checked(list, size).get(index);
+            }
+          }));
+        }
+      } else {
+        for (Object value : checked((List) result, size)) {
+          values.add(value == null ? nullValue : value);
+        }
       }
-      return o;
+      return values;
     }
-  };
-  private static Logger logger = Logger.getLogger(Mustache.class.getName());
 
-  private static class Nothing extends AccessibleObject {
+    private List checked(List values, int size) {
+      if (values == null || values.size() != size) {
+        throw new IllegalStateException(method + " returned " + (values == null ? "null" : values.size() +
+                " values") + " for " + size + " objects");
+      }
+      return values;
+    }
   }
 
-  private static Nothing nothing = new Nothing();
+  // Marks names that the class doesn't have
+  protected static final Accessor NOTHING = new Accessor(Object.class) {
+    @Override
+    public Object get(Object parent, Scope scope) {
+      return null;
+    }
+  };
 
   @Override
   public Object handleObject(Object parent, Scope scope, String name) {
@@ -49,100 +195,302 @@ public class DefaultObjectHandler implements ObjectHandler {
         throw new RuntimeException("Failed to get value from future", e);
       }
     }
-    Object value = null;
     if (parent instanceof Map) {
       return ((Map) parent).get(name);
     }
-    Class aClass = parent.getClass();
-    Map<String, AccessibleObject> members;
-    // Don't overload methods in your contexts
-    members = cache.get(aClass);
-    AccessibleObject member;
-    synchronized (members) {
-      member = members.get(name);
+    Accessor accessor = getAccessor(parent.getClass(), name);
+    if (accessor == NOTHING) return null;
+    try {
+      return accessor.get(parent, scope);
+    } catch (Exception e) {
+      // Might be nice for debugging but annoying in practice
+      logger.log(Level.WARNING, "Failed to get value for " + name, e);
+      return null;
     }
-    if (member == nothing) return null;
-    if (member == null) {
+  }
+
+  /**
+   * Resolve a component of a path with the accessors it remembers. The scope is only created
+   * from the outer object when the accessor is a method that takes one. Values that don't
+   * depend on the scope are remembered in the memo if there is one.
+   */
+  Object handleObject(Object parent, Scope scope, Object outer, Path path, int component, Memo memo) {
+    if (parent == null) return null;
+    if (parent instanceof Future) {
       try {
-        member = getField(name, aClass);
-        synchronized (members) {
-          members.put(name, member);
-        }
-      } catch (NoSuchFieldException e) {
-        // Not set
+        parent = ((Future) parent).get();
+      } catch (Exception e) {
+        throw new RuntimeException("Failed to get value from future", e);
       }
     }
-    if (member == null) {
+    String name = path.getComponents()[component];
+    if (parent instanceof Map) {
+      return ((Map) parent).get(name);
+    }
+    return get(path.getAccessor(component, parent.getClass()), parent, scope, outer, name, memo);
+  }
+
+  /**
+   * Resolve a name that wasn't split when the template was compiled, remembering the value
+   * in the memo like a path.
+   */
+  Object handleObject(Object parent, Scope scope, String name, Memo memo) {
+    if (parent == null) return null;
+    if (parent instanceof Future) {
       try {
-        synchronized (members) {
-          member = getMethod(name, aClass);
-          members.put(name, member);
-        }
-      } catch (NoSuchMethodException e) {
-        try {
-          synchronized (members) {
-            member = getMethod(name, aClass, Scope.class);
-            members.put(name, member);
-          }
-        } catch (NoSuchMethodException e1) {
-          String propertyname = name.substring(0,
-                  1).toUpperCase() + (name.length() > 1 ? name.substring(1) : "");
-          try {
-            synchronized (members) {
-              member = getMethod("get" + propertyname, aClass);
-              members.put(name, member);
-            }
-          } catch (NoSuchMethodException e2) {
-            try {
-              synchronized (members) {
-                member = getMethod("is" + propertyname, aClass);
-                members.put(name, member);
-              }
-            } catch (NoSuchMethodException e3) {
-              // Nothing to be done
-            }
-          }
-        }
+        parent = ((Future) parent).get();
+      } catch (Exception e) {
+        throw new RuntimeException("Failed to get value from future", e);
+      }
+    }
+    if (parent instanceof Map) {
+      return ((Map) parent).get(name);
+    }
+    return get(getAccessor(parent.getClass(), name), parent, scope, null, name, memo);
+  }
+
+  private Object get(Accessor accessor, Object parent, Scope scope, Object outer, String name, Memo memo) {
+    if (accessor == NOTHING) return null;
+    if (accessor instanceof ScopeAccessor) {
+      if (scope == null) {
+        scope = new Scope(outer);
+      }
+      memo = null;
+    } else if (memo != null) {
+      Object value = memo.get(parent, name);
+      if (value != null) {
+        return value;
       }
     }
     try {
-      if (member instanceof Field) {
-        Field field = (Field) member;
-        value = field.get(parent);
-        if (value == null) {
-          if (field.getType().isAssignableFrom(Iterable.class)) {
-            value = Scope.EMPTY;
-          } else {
-            value = Scope.NULL;
-          }
-        }
-      } else if (member instanceof Method) {
-        Method method = (Method) member;
-        if (method.getParameterTypes().length == 0) {
-          value = method.invoke(parent);
-        } else {
-          value = method.invoke(parent, scope);
-        }
-        if (value == null) {
-          if (method.getReturnType().isAssignableFrom(Iterable.class)) {
-            value = Scope.EMPTY;
-          } else {
-            value = Scope.NULL;
-          }
-        }
+      Object value = accessor.get(parent, scope);
+      if (memo != null && value != null) {
+        memo.remember(parent, name, value);
       }
+      return value;
     } catch (Exception e) {
-      // Might be nice for debugging but annoying in practice
       logger.log(Level.WARNING, "Failed to get value for " + name, e);
+      return null;
+    }
+  }
+
+  /**
+   * Whether the object has a value for the component of the path. Futures that haven't
+   * completed may have one.
+   */
+  boolean has(Object parent, Path path, int component) {
+    if (parent instanceof Future) {
+      Future future = (Future) parent;
+      if (!future.isDone()) {
+        return true;
+      }
+      try {
+        parent = future.get();
+      } catch (Exception e) {
+        return true;
+      }
+      if (parent == null) return false;
     }
-    if (member == null) {
-      synchronized (members) {
-        members.put(name, nothing);
+    String name = path.getComponents()[component];
+    if (parent instanceof Map) {
+      return ((Map) parent).containsKey(name);
+    }
+    return path.getAccessor(component, parent.getClass()) != NOTHING;
+  }
+
+  /**
+   * Resolve a component of a path ahead of the render. Fields are read and members declared
+   * to return a future are called to start it, their values are put in the memo so that the
+   * render doesn't call them again. Other methods are only followed when their value is
+   * already in the memo.
+   */
+  Object prefetch(Object parent, Path path, int component, Memo memo) {
+    if (parent instanceof Future) {
+      Future future = (Future) parent;
+      if (!future.isDone()) {
+        return null;
       }
+      try {
+        parent = future.get();
+      } catch (Exception e) {
+        // The render will report it
+        return null;
+      }
+      if (parent == null) return null;
+    }
+    String name = path.getComponents()[component];
+    if (parent instanceof Map) {
+      return ((Map) parent).get(name);
+    }
+    Object value = memo.peek(parent, name);
+    if (value != null) {
+      return value;
+    }
+    Accessor accessor = path.getAccessor(component, parent.getClass());
+    if (accessor instanceof ScopeAccessor ||
+            !(accessor instanceof FieldValueAccessor || Future.class.isAssignableFrom(accessor.type))) {
+      return null;
+    }
+    try {
+      value = accessor.get(parent, null);
+    } catch (Exception e) {
+      // The render will report it
+      return null;
+    }
+    if (value != null) {
+      memo.put(parent, name, value);
     }
     return value;
   }
 
+  /**
+   * Look up the value of the name for each of the objects with one call when their class has
+   * a {@link Batch} method for it and keep the values in the memo. Objects whose values are
+   * already in the memo or that aren't of the class of the first one are left out.
+   *
+   * @return whether the name was looked up this way
+   */
+  boolean batch(List<Object> parents, String name, Memo memo) {
+    if (parents.isEmpty()) return false;
+    Class aClass = parents.get(0).getClass();
+    Accessor accessor = getAccessor(aClass, name);
+    if (!(accessor instanceof BatchAccessor)) return false;
+    List<Object> missing = new ArrayList<Object>(parents.size());
+    for (Object parent : parents) {
+      if (parent.getClass() == aClass && !memo.contains(parent, name)) {
+        missing.add(parent);
+      }
+    }
+    if (!missing.isEmpty()) {
+      try {
+        List<Object> values = ((BatchAccessor) accessor).load(missing);
+        for (int i = 0; i < values.size(); i++) {
+          memo.put(missing.get(i), name, values.get(i));
+        }
+      } catch (Exception e) {
+        // Each object is asked for its value on its own
+        logger.log(Level.WARNING, "Failed to get values for " + name, e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the class has a {@link Batch} method for the name.
+   */
+  static boolean isBatched(Class aClass, String name) {
+    return getAccessor(aClass, name) instanceof BatchAccessor;
+  }
+
+  /**
+   * Get the accessor for the name on this class, resolving it the first time.
+   */
+  protected static Accessor getAccessor(Class aClass, String name) {
+    Map<String, Accessor> accessors = cache.get(aClass);
+    if (accessors == null) {
+      accessors = new ConcurrentHashMap<String, Accessor>();
+      Map<String, Accessor> existing = cache.putIfAbsent(aClass, accessors);
+      if (existing != null) {
+        accessors = existing;
+      }
+    }
+    Accessor accessor = accessors.get(name);
+    if (accessor == null) {
+      // Racing threads will all resolve the same member
+      accessor = generatedAccessor(aClass, name);
+      if (accessor == null) {
+        accessor = accessor(findMember(aClass, name));
+      }
+      accessors.put(name, accessor);
+    }
+    return accessor;
+  }
+
+  /**
+   * The accessor from the handler generated for a class annotated with {@link TemplateContext}
+   * or null if there isn't one or it leaves the name to reflection.
+   */
+  private static Accessor generatedAccessor(Class aClass, String name) {
+    if (!aClass.isAnnotationPresent(TemplateContext.class)) {
+      return null;
+    }
+    GeneratedObjectHandler handler = generated.get(aClass);
+    if (handler == null) {
+      handler = GeneratedObjectHandler.load(aClass);
+      generated.put(aClass, handler);
+    }
+    return handler.accessorFor(name);
+  }
+
+  /**
+   * The accessor for the member. Public members of public classes get a generated accessor
+   * that uses them directly, the rest are used with reflection.
+   */
+  protected static Accessor accessor(AccessibleObject member) {
+    if (member instanceof Field) {
+      Field field = (Field) member;
+      Accessor generated = AccessorGenerator.generate(field);
+      return generated == null ? new FieldAccessor(field) : generated;
+    } else if (member instanceof Method) {
+      Method method = (Method) member;
+      if (method.getParameterTypes().length == 1 && method.getParameterTypes()[0] == List.class) {
+        return new BatchAccessor(method);
+      }
+      Accessor generated = AccessorGenerator.generate(method);
+      if (generated != null) {
+        return generated;
+      }
+      if (method.getParameterTypes().length == 0) {
+        return new MethodAccessor(method);
+      }
+      return new ScopeMethodAccessor(method);
+    }
+    return NOTHING;
+  }
+
+  /**
+   * Find the field, method, method taking a Scope, {@link Batch} method or bean property for
+   * the name, in that order.
+   */
+  protected static AccessibleObject findMember(Class aClass, String name) {
+    // Don't overload methods in your contexts
+    try {
+      return getField(name, aClass);
+    } catch (NoSuchFieldException e) {
+      // Not set
+    }
+    try {
+      return getMethod(name, aClass);
+    } catch (NoSuchMethodException e) {
+      // Not set
+    }
+    try {
+      return getMethod(name, aClass, Scope.class);
+    } catch (NoSuchMethodException e) {
+      // Not set
+    }
+    try {
+      Method method = getMethod(name, aClass, List.class);
+      if (method.isAnnotationPresent(Batch.class) && Modifier.isStatic(method.getModifiers())) {
+        return method;
+      }
+    } catch (NoSuchMethodException e) {
+      // Not set
+    }
+    String propertyname = name.substring(0, 1).toUpperCase() + (name.length() > 1 ? name.substring(1) : "");
+    try {
+      return getMethod("get" + propertyname, aClass);
+    } catch (NoSuchMethodException e) {
+      // Not set
+    }
+    try {
+      return getMethod("is" + propertyname, aClass);
+    } catch (NoSuchMethodException e) {
+      // Nothing to be done
+    }
+    return null;
+  }
+
   @Override
   public Iterator iterate(Object object) {
     Iterator i;
@@ -0,0 +1,36 @@
+package com.sampullara.mustache;
+
+import java.util.Iterator;
+
+/**
+ * The scopes of the elements of a section. When the body of the section is done with each
+ * scope before asking for the next one, as it is when rendering serially, a single scope can
+ * be reused for every element instead of allocating one each time.
+ */
+public abstract class ElementIterable implements Iterable<Scope> {
+
+  /**
+   * @param reuse whether each scope may be changed into the next one once it has been used
+   * @return the scopes of the elements
+   */
+  public abstract Iterator<Scope> iterator(boolean reuse);
+
+  @Override
+  public Iterator<Scope> iterator() {
+    return iterator(false);
+  }
+
+  /**
+   * Iterate over the scopes of a section, reusing them when possible.
+   *
+   * @param iterable the scopes of a section
+   * @param reuse    whether each scope is done with before the next is asked for
+   * @return the scopes of the section
+   */
+  public static Iterator<Scope> iterator(Iterable<Scope> iterable, boolean reuse) {
+    if (reuse && iterable instanceof ElementIterable) {
+      return ((ElementIterable) iterable).iterator(true);
+    }
+    return iterable.iterator();
+  }
+}
@@ -0,0 +1,126 @@
+package com.sampullara.mustache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The scope of one element of a section. The element is held in a field of its own rather
+ * than in the map so that iterating doesn't build a hash table for every element. Anything
+ * else put in the scope goes in the map as usual.
+ */
+class ElementScope extends Scope {
+  private final String name;
+  private Object element;
+  private boolean bound;
+
+  ElementScope(Scope parentScope, String name) {
+    super(parentScope);
+    this.name = name;
+  }
+
+  /**
+   * Make this the scope of the next element.
+   *
+   * @return false if the scope has been changed in some other way and can't be reused
+   */
+  boolean bind(Object element) {
+    if (!super.isEmpty()) {
+      return false;
+    }
+    // Booleans only decide whether the section is shown
+    setParent(element instanceof Boolean ? null : element);
+    this.element = element;
+    bound = true;
+    return true;
+  }
+
+  @Override
+  Object own(String key) {
+    if (bound && name.equals(key)) {
+      return element;
+    }
+    return super.own(key);
+  }
+
+  @Override
+  public Object put(Object key, Object value) {
+    if (name.equals(key)) {
+      Object old = bound ? element : null;
+      element = value;
+      bound = true;
+      return old;
+    }
+    return super.put(key, value);
+  }
+
+  @Override
+  public Object remove(Object key) {
+    if (bound && name.equals(key)) {
+      Object old = element;
+      element = null;
+      bound = false;
+      return old;
+    }
+    return super.remove(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return (bound && name.equals(key)) || super.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return super.size() + (bound ? 1 : 0);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return !bound && super.isEmpty();
+  }
+
+  @Override
+  public Collection<Object> values() {
+    if (super.isEmpty()) {
+      return bound ? Collections.singletonList(element) : Collections.emptyList();
+    }
+    spill();
+    return super.values();
+  }
+
+  @Override
+  public Set<Object> keySet() {
+    spill();
+    return super.keySet();
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    spill();
+    return super.entrySet();
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    spill();
+    return super.containsValue(value);
+  }
+
+  @Override
+  public void clear() {
+    element = null;
+    bound = false;
+    super.clear();
+  }
+
+  // Views of the map have to see the element, after this it is an ordinary scope
+  private void spill() {
+    if (bound) {
+      bound = false;
+      super.put(name, element);
+      element = null;
+    }
+  }
+}
@@ -2,10 +2,12 @@ package com.sampullara.mustache;
 
 import com.google.common.base.Function;
 
+import com.sampullara.util.FutureWriter;
 import com.sampullara.util.TemplateFunction;
 
 /**
- * Used to reproduce markup from code.
+ * Used to reproduce markup from code. The section is rendered once into a writer of its own
+ * and the result handed to the function, so nothing about the capture is held by the thread.
  */
 public abstract class FunctionIterator implements Iterable<Scope> {
   private boolean isTemplateFunction;
@@ -17,4 +19,13 @@ public abstract class FunctionIterator implements Iterable<Scope> {
   public boolean isTemplateFunction() {
     return isTemplateFunction;
   }
+
+  /**
+   * Apply the function to the captured body of the section and write the result.
+   *
+   * @param writer where the result goes
+   * @param body   the rendered body, or the template text of a template function
+   * @throws MustacheException
+   */
+  public abstract void apply(FutureWriter writer, String body) throws MustacheException;
 }
@@ -0,0 +1,45 @@
+package com.sampullara.mustache;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The base class of the handlers generated for classes annotated with {@link TemplateContext}.
+ * The generated class is named after the binary name of the class followed by
+ * {@link #SUFFIX} and is found by the default object handler the first time it looks up a
+ * name on the class. Its accessors are remembered like the ones found with reflection.
+ */
+public abstract class GeneratedObjectHandler extends DefaultObjectHandler {
+  public static final String SUFFIX = "$$ObjectHandler";
+
+  private static Logger logger = Logger.getLogger(Mustache.class.getName());
+
+  // Leaves every name to reflection when the generated handler can't be loaded
+  private static final GeneratedObjectHandler NONE = new GeneratedObjectHandler() {
+    @Override
+    protected Accessor accessorFor(String name) {
+      return null;
+    }
+  };
+
+  /**
+   * The accessor for the name, {@link #NOTHING} if the class doesn't have it or null to find
+   * it with reflection. Members that the generated code can't call directly are found with
+   * reflection.
+   *
+   * @param name the name looked up on an object of the class
+   * @return
+   */
+  protected abstract Accessor accessorFor(String name);
+
+  static GeneratedObjectHandler load(Class aClass) {
+    try {
+      Class<?> handler = Class.forName(aClass.getName() + SUFFIX, true, aClass.getClassLoader());
+      return (GeneratedObjectHandler) handler.newInstance();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "No generated object handler for " + aClass.getName() +
+              ", was the processor run?", e);
+      return NONE;
+    }
+  }
+}
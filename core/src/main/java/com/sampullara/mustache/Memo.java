@@ -0,0 +1,97 @@
+package com.sampullara.mustache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The values looked up during a render so that each field or method of an object is only
+ * read once. Set one on the scope a render starts with and every scope made from it shares
+ * it, including the scopes of parallel tasks. Values are remembered by the identity of the
+ * object they were read from and their name. Methods that take a Scope and values from maps
+ * are always looked up again. Only use a memo for a single render as it holds on to the
+ * values and won't see them change. Sections whose elements have {@link Batch} methods give
+ * their elements a memo that only holds the values loaded together when there isn't one.
+ */
+public class Memo {
+  private final ConcurrentMap<Key, Object> values = new ConcurrentHashMap<Key, Object>();
+  private final AtomicLong saved = new AtomicLong();
+  // Whether values are remembered as they are looked up or only when they are loaded together
+  private final boolean remember;
+
+  public Memo() {
+    this(true);
+  }
+
+  Memo(boolean remember) {
+    this.remember = remember;
+  }
+
+  Object get(Object parent, String name) {
+    Object value = values.get(new Key(parent, name));
+    if (value != null) {
+      saved.incrementAndGet();
+    }
+    return value;
+  }
+
+  // Doesn't count as a saved lookup
+  Object peek(Object parent, String name) {
+    return values.get(new Key(parent, name));
+  }
+
+  boolean contains(Object parent, String name) {
+    return values.containsKey(new Key(parent, name));
+  }
+
+  void put(Object parent, String name, Object value) {
+    values.put(new Key(parent, name), value);
+  }
+
+  void remember(Object parent, String name, Object value) {
+    if (remember) {
+      put(parent, name, value);
+    }
+  }
+
+  /**
+   * How many lookups were answered from the memo instead of calling the object.
+   */
+  public long getSaved() {
+    return saved.get();
+  }
+
+  /**
+   * How many values are remembered.
+   */
+  public int size() {
+    return values.size();
+  }
+
+  @Override
+  public String toString() {
+    return "Memo: " + values.size() + " values, " + saved.get() + " lookups saved";
+  }
+
+  private static final class Key {
+    final Object parent;
+    final String name;
+
+    Key(Object parent, String name) {
+      this.parent = parent;
+      this.name = name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return parent == other.parent && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(parent) * 31 + name.hashCode();
+    }
+  }
+}
@@ -2,24 +2,25 @@ package com.sampullara.mustache;
 
 import com.google.common.base.Function;
 import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.sampullara.util.FutureWriter;
 import com.sampullara.util.TemplateFunction;
+import com.sampullara.util.Utf8Writer;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static com.google.common.collect.Iterables.limit;
 import static com.google.common.collect.Iterables.transform;
@@ -64,6 +65,9 @@ public class Mustache {
   // A reference to the generator of the template
   protected MustacheJava mj;
 
+  // The paths the template may look up, started when a render starts
+  private volatile List<Path> dependencies;
+
   // The template text
   protected StringBuilder sb = new StringBuilder();
 
@@ -125,7 +129,34 @@ public class Mustache {
    */
   public void execute(Writer writer, Object parent) throws MustacheException, IOException {
     FutureWriter fw = new FutureWriter(writer);
-    execute(fw, new Scope(parent));
+    execute(fw, prefetch(new Scope(parent)));
+    fw.flush();
+  }
+
+  /**
+   * Execute the Mustache using an object as the backing data and write the result
+   * to the stream as UTF-8. Static text is written as bytes encoded when the template
+   * was compiled.
+   *
+   * @param os
+   * @param parent
+   * @throws MustacheException
+   */
+  public void execute(OutputStream os, Object parent) throws MustacheException, IOException {
+    execute(os, new Scope(parent));
+  }
+
+  /**
+   * Execute the Mustache using a scope as the backing data and write the result
+   * to the stream as UTF-8.
+   *
+   * @param os  a stream to write to
+   * @param ctx context of the execution
+   * @throws MustacheException
+   */
+  public void execute(OutputStream os, Scope ctx) throws MustacheException, IOException {
+    FutureWriter fw = new FutureWriter(new Utf8Writer(os));
+    execute(fw, prefetch(ctx));
     fw.flush();
   }
 
@@ -139,10 +170,41 @@ public class Mustache {
    */
   public void execute(Writer writer, Scope ctx) throws MustacheException, IOException {
     FutureWriter fw = new FutureWriter(writer);
-    execute(fw, ctx);
+    execute(fw, prefetch(ctx));
     fw.flush();
   }
 
+  /**
+   * Execute the Mustache without waiting for the futures in the data to complete. Sections
+   * whose values are still being computed are rendered when they arrive.
+   *
+   * @param writer
+   * @param parent
+   * @return a future that completes once all of the output has been written
+   */
+  public ListenableFuture<Object> executeAsync(Writer writer, Object parent) {
+    return executeAsync(writer, new Scope(parent));
+  }
+
+  /**
+   * Execute the Mustache using a scope as the backing data without waiting for the futures in
+   * it to complete. The result is only asynchronous with the parallel FutureWriter, otherwise
+   * it has already completed when it is returned.
+   *
+   * @param writer a writer to write to
+   * @param ctx    context of the execution
+   * @return a future that completes once all of the output has been written
+   */
+  public ListenableFuture<Object> executeAsync(Writer writer, Scope ctx) {
+    FutureWriter fw = new FutureWriter(writer);
+    try {
+      execute(fw, prefetch(ctx));
+    } catch (MustacheException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return fw.flushAsync();
+  }
+
   /**
    * Execute the Mustache using an object as a the backing data.
    *
@@ -151,11 +213,52 @@ public class Mustache {
    * @throws MustacheException
    */
   public void execute(FutureWriter writer, Object parent) throws MustacheException {
-    execute(writer, new Scope(parent));
+    execute(writer, prefetch(new Scope(parent)));
+  }
+
+  /**
+   * The paths this template and its partials may look up from the scope a render starts
+   * with. Renders started with a Writer, an OutputStream, executeAsync or an object start the
+   * futures along these paths before anything is written, rather than when they are reached.
+   * execute(FutureWriter, Scope) doesn't because partials are executed with it, call
+   * {@link #prefetch(Scope)} before it to do the same.
+   *
+   * @param dependencies the paths or null to look values up as they are reached
+   */
+  public void setDependencies(List<Path> dependencies) {
+    this.dependencies = dependencies;
+  }
+
+  public List<Path> getDependencies() {
+    return dependencies;
+  }
+
+  /**
+   * The scope to render with after starting the futures along the dependencies. The values
+   * looked up ahead are kept in the memo of the scope so that the render uses them rather
+   * than asking for them again. Without a memo the scope is wrapped in one that only holds
+   * those values.
+   *
+   * @param ctx the scope the render starts with
+   * @return the scope to pass to execute(FutureWriter, Scope)
+   */
+  public Scope prefetch(Scope ctx) {
+    List<Path> paths = dependencies;
+    if (paths == null) {
+      return ctx;
+    }
+    Scope scope = ctx;
+    if (scope.getMemo() == null) {
+      scope = new Scope(ctx);
+      scope.setMemo(new Memo(false));
+    }
+    scope.prefetch(paths);
+    return scope;
   }
 
   /**
-   * Execute the Mustache using the provided Scope as the backing data.
+   * Execute the Mustache using the provided Scope as the backing data. Nothing is prefetched,
+   * see {@link #prefetch(Scope)}.
    *
    * @param writer
    * @param ctx
@@ -187,39 +290,14 @@ public class Mustache {
     }
   }
 
-  protected ThreadLocal<Stack<FutureWriter>> capturedWriter = new ThreadLocal<Stack<FutureWriter>>() {
-    @Override
-    protected Stack<FutureWriter> initialValue() {
-      return new Stack<FutureWriter>();
-    }
-  };
-  protected ThreadLocal<Stack<FutureWriter>> actual = new ThreadLocal<Stack<FutureWriter>>() {
-    @Override
-    protected Stack<FutureWriter> initialValue() {
-      return new Stack<FutureWriter>();
-    }
-  };
-
-  /**
-   * Used for capturing bodies during evaluation.
-   * 
-   * @param writer
-   * @return
-   */
-  public FutureWriter pushWriter(FutureWriter writer) {
-    Stack<FutureWriter> capturedStack = capturedWriter.get();
-    if (capturedStack.size() > 0) {
-      Stack<FutureWriter> actualStack = actual.get();
-      actualStack.push(writer);
-      writer = capturedStack.peek();
-    }
-    return writer;
-  }
-
   public void setCompiled(List<Code> compiled) {
     this.compiled = new ArrayList<Code>(compiled).toArray(new Code[compiled.size()]);
   }
 
+  /**
+   * The codes of the template. They are shared by every template that includes or extends
+   * this one and must not be changed.
+   */
   public Code[] getCompiled() {
     return compiled;
   }
@@ -240,12 +318,22 @@ public class Mustache {
    * @return
    */
   public Iterable<Scope> ifiterable(final Scope s, final String name) {
-    return limit(transform(iterable(s, name), new Function<Scope, Scope>() {
+    return ifiterable(s, new Path(name));
+  }
+
+  public Iterable<Scope> ifiterable(final Scope s, Path path) {
+    final String name = path.getName();
+    Iterable<Scope> iterable = iterable(s, path);
+    Iterable<Scope> first = limit(transform(iterable, new Function<Scope, Scope>() {
       public Scope apply(Scope scope) {
         scope.remove(name);
         return scope;
       }
     }), 1);
+    if (iterable instanceof PendingIterable) {
+      return pending(((PendingIterable) iterable).getPending(), first);
+    }
+    return first;
   }
 
   /**
@@ -256,13 +344,18 @@ public class Mustache {
    * @return
    */
   public Iterable<Scope> iterable(final Scope s, final String name) {
+    return iterable(s, new Path(name));
+  }
+
+  public Iterable<Scope> iterable(final Scope s, Path path) {
+    final String name = path.getName();
     MustacheTrace.Event event = null;
     if (trace) {
       Object parent = s.getParent();
       String traceName = parent == null ? s.getClass().getName() : parent.getClass().getName();
       event = MustacheTrace.addEvent("iterable: " + name, traceName);
     }
-    final Object value = getValue(s, name);
+    final Object value = getValue(s, path);
     if (value instanceof Function) {
       if (trace) {
         event.end();
@@ -275,11 +368,12 @@ public class Mustache {
     if (value == null || (value instanceof Boolean && !((Boolean) value))) {
       return EMPTY;
     }
-    return new Iterable<Scope>() {
-      public Iterator<Scope> iterator() {
+    return pending(value, new ElementIterable() {
+      public Iterator<Scope> iterator(final boolean reuse) {
         return new Iterator<Scope>() {
           Iterator i;
           Object iterable = value;
+          ElementScope scope;
 
           public boolean hasNext() {
             if (i == null) {
@@ -309,13 +403,10 @@ public class Mustache {
             if (trace) {
               event.end();
             }
-            Scope scope;
-            if (!(value instanceof Boolean)) {
-              scope = new Scope(value, s);
-            } else {
-              scope = new Scope(s);
+            if (!reuse || scope == null || !scope.bind(value)) {
+              scope = new ElementScope(s, name);
+              scope.bind(value);
             }
-            scope.put(name, value);
             return scope;
           }
 
@@ -324,7 +415,22 @@ public class Mustache {
           }
         };
       }
-    };
+    });
+  }
+
+  /**
+   * Mark the scopes of a value that is still being computed.
+   */
+  private static Iterable<Scope> pending(Object value, final Iterable<Scope> scopes) {
+    if (value instanceof Future && !((Future) value).isDone()) {
+      return new PendingIterable((Future) value) {
+        @Override
+        public Iterator<Scope> iterator() {
+          return scopes.iterator();
+        }
+      };
+    }
+    return scopes;
   }
 
   // Mustache template function cache size. For i18n should be > #i18n stanzas * languages
@@ -339,55 +445,32 @@ public class Mustache {
    * @return
    */
   public FunctionIterator function(final Scope scope, final Function f) {
-    final boolean templateFunction = f instanceof TemplateFunction;
     return new FunctionIterator(f) {
       @Override
       public Iterator<Scope> iterator() {
-        return new Iterator<Scope>() {
-          boolean first = true;
-          StringWriter writer = new StringWriter();
+        return Collections.singleton(scope).iterator();
+      }
 
-          @Override
-          public synchronized boolean hasNext() {
-            if (first) {
-              capturedWriter.get().push(new FutureWriter(writer));
-            } else {
-              try {
-                capturedWriter.get().pop().flush();
-                Object apply = f.apply(writer.toString());
-                String applyString = apply == null ? null : String.valueOf(apply);
-                if (templateFunction) {
-                  if (applyString != null) {
-                    Mustache mustache = templateFunctionCache.get(applyString);
-                    if (mustache == null) {
-                      mustache = mj.parse(applyString, name);
-                      templateFunctionCache.put(applyString, mustache);
-                    }
-                    mustache.execute(actual.get().pop(), scope);
-                  }
-                } else {
-                  actual.get().pop().write(applyString);
-                }
-              } catch (Exception e) {
-                throw new RuntimeException(e);
+      @Override
+      public void apply(FutureWriter writer, String body) throws MustacheException {
+        Object apply = f.apply(body);
+        String applyString = apply == null ? null : String.valueOf(apply);
+        try {
+          if (isTemplateFunction()) {
+            if (applyString != null) {
+              Mustache mustache = templateFunctionCache.get(applyString);
+              if (mustache == null) {
+                mustache = mj.parse(applyString, name);
+                templateFunctionCache.put(applyString, mustache);
               }
+              mustache.execute(writer, scope);
             }
-            return first;
-          }
-
-          @Override
-          public synchronized Scope next() {
-            if (first) {
-              first = false;
-              return scope;
-            }
-            throw new NoSuchElementException();
-          }
-
-          @Override
-          public void remove() {
+          } else {
+            writer.write(applyString);
           }
-        };
+        } catch (IOException e) {
+          throw new MustacheException("Failed to write function result", e);
+        }
       }
     };
   }
@@ -402,7 +485,8 @@ public class Mustache {
   }
 
   /**
-   * Compile a partial in the context of this mustache.
+   * Find a partial in the context of this mustache. The partial is shared with every other
+   * template that includes it.
    * 
    * @param name
    * @return
@@ -417,15 +501,42 @@ public class Mustache {
     if (trace) {
       event = MustacheTrace.addEvent("compile partial: " + name, "");
     }
-    Mustache mustache;
-    mustache = mj.parseFile(name + "." + getPartialExtension());
-    mustache.setMustacheJava(mj);
+    Mustache mustache = shared(name + "." + getPartialExtension());
+    if (trace) {
+      event.end();
+    }
+    return mustache;
+  }
+
+  /**
+   * Find a template that this mustache extends. Like partials it is shared, extending
+   * it builds a new tree of codes and leaves the template itself unchanged.
+   *
+   * @param name
+   * @return
+   * @throws MustacheException
+   */
+  public Mustache extend(String name) throws MustacheException {
+    MustacheTrace.Event event = null;
+    if (trace) {
+      event = MustacheTrace.addEvent("compile extend: " + name, "");
+    }
+    Mustache mustache = shared(name + "." + getPartialExtension());
     if (trace) {
       event.end();
     }
     return mustache;
   }
 
+  private Mustache shared(String path) throws MustacheException {
+    if (mj instanceof SharedPartials) {
+      return ((SharedPartials) mj).parsePartial(path);
+    }
+    Mustache mustache = mj.parseFile(path);
+    mustache.setMustacheJava(mj);
+    return mustache;
+  }
+
   protected String getPartialExtension() {
     int index = name.lastIndexOf(".");
     return name.substring(index + 1);
@@ -465,13 +576,34 @@ public class Mustache {
    * @return
    */
   public Iterable<Scope> inverted(final Scope s, final String name) {
+    return inverted(s, new Path(name));
+  }
+
+  public Iterable<Scope> inverted(final Scope s, Path path) {
+    final String name = path.getName();
     MustacheTrace.Event event = null;
     if (trace) {
       Object parent = s.getParent();
       String traceName = parent == null ? s.getClass().getName() : parent.getClass().getName();
       event = MustacheTrace.addEvent("inverted: " + name, traceName);
     }
-    Object possibleFuture = getValue(s, name);
+    final Object possibleFuture = getValue(s, path);
+    if (trace) {
+      event.end();
+    }
+    if (possibleFuture instanceof Future && !((Future) possibleFuture).isDone()) {
+      // Decide once the value is known
+      return pending(possibleFuture, new Iterable<Scope>() {
+        @Override
+        public Iterator<Scope> iterator() {
+          return inverted(s, name, possibleFuture).iterator();
+        }
+      });
+    }
+    return inverted(s, name, possibleFuture);
+  }
+
+  private Iterable<Scope> inverted(Scope s, String name, Object possibleFuture) {
     while (possibleFuture instanceof Future) {
       try {
         possibleFuture = ((Future) possibleFuture).get();
@@ -480,9 +612,6 @@ public class Mustache {
       }
     }
     final Object value = possibleFuture;
-    if (trace) {
-      event.end();
-    }
 
     boolean isntEmpty = value instanceof Iterable && ((Iterable) value).iterator().hasNext();
     if (isntEmpty ||
@@ -531,102 +660,153 @@ public class Mustache {
    */
   public Object getValue(Scope s, String name) {
     try {
-
-      Object o;
       // TODO: If we get the implicit current element, we just grab the
       // first value from the current scope. This is somewhat dangerous
       // if used in the wrong scope or if some additional values have
       // been added to the scope. We might want to figure out a more robust
       // way to implement this. If you do not use "." it won't matter
-      if (IMPLICIT_CURRENT_ELEMENT_TOKEN.equals(name)) {
-        o = s.values().iterator().next();
-      } else {
-        o = s.get(name);
-      }
+      Object o = IMPLICIT_CURRENT_ELEMENT_TOKEN.equals(name) ? s.values().iterator().next() : s.get(name);
+      return found(s, name, o);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-      if (o == null && debug) {
-        StringBuilder sb = new StringBuilder();
-        for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-          String className = ste.getClassName();
-          if (className.startsWith("com.sampullara.mustaches.Mustache")) {
-            sb.append(this.name).append(":").append(ste.getLineNumber());
-            break;
-          }
-        }
-        if (sb.length() == 0) {
-          sb.append(this.name).append(":").append(line.get());
-        }
-        String location = name + " @ " + sb;
-        if (!name.startsWith("_") && missing.put(location, true) == null) {
-          logger.warning("No field, method or key found for: " + location + " " + s);
+  /**
+   * Get a value from the scope using a path split when the template was compiled.
+   *
+   * @param s
+   * @param path
+   * @return
+   */
+  public Object getValue(Scope s, Path path) {
+    String name = path.getName();
+    try {
+      Object o = IMPLICIT_CURRENT_ELEMENT_TOKEN.equals(name) ? s.values().iterator().next() : s.get(path);
+      return found(s, name, o);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Report the missing values, NULL is how a value says that it is there but null
+  private Object found(Scope s, String name, Object o) {
+    if (o == null && debug) {
+      StringBuilder sb = new StringBuilder();
+      for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
+        String className = ste.getClassName();
+        if (className.startsWith("com.sampullara.mustaches.Mustache")) {
+          sb.append(this.name).append(":").append(ste.getLineNumber());
+          break;
         }
       }
-      if (o == NULL) {
-        return null;
+      if (sb.length() == 0) {
+        sb.append(this.name).append(":").append(line.get());
       }
-      return o;
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+      String location = name + " @ " + sb;
+      if (!name.startsWith("_") && missing.put(location, true) == null) {
+        logger.warning("No field, method or key found for: " + location + " " + s);
+      }
+    }
+    if (o == NULL) {
+      return null;
     }
+    return o;
+  }
+
+  // What encode replaces each ASCII character with. An '&' is left alone when it already
+  // starts an entity.
+  private static final String[] ESCAPES = new String[128];
+
+  static {
+    ESCAPES['&'] = "&amp;";
+    ESCAPES['\\'] = "\\\\";
+    ESCAPES['"'] = "&quot;";
+    ESCAPES['<'] = "&lt;";
+    ESCAPES['>'] = "&gt;";
+    ESCAPES['\n'] = "&#10;";
   }
 
-  private static Pattern escapedPattern = Pattern.compile("^&\\w+;");
+  // Subclasses that override encode(String) have it used for streaming as well
+  private final boolean encodeOverridden = overridesEncode(getClass());
+
+  private static boolean overridesEncode(Class<? extends Mustache> aClass) {
+    try {
+      return aClass.getMethod("encode", String.class).getDeclaringClass() != Mustache.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
 
   // Override this in a super class if you don't want encoding or would like
   // to change the way encoding works. Also, if you use unexecute, make sure
   // also do the inverse in decode.
   public String encode(String value) {
-    StringBuilder sb = new StringBuilder();
+    if (firstEscape(value, 0) == -1) {
+      return value;
+    }
+    StringWriter sw = new StringWriter(value.length() + 16);
+    try {
+      escape(value, sw);
+    } catch (IOException e) {
+      // Can't happen
+      throw new AssertionError(e);
+    }
+    return sw.toString();
+  }
+
+  /**
+   * Encode the value straight into the writer. Unescaped runs are written as ranges of the
+   * value so nothing is allocated.
+   */
+  public void encode(String value, Writer writer) throws IOException {
+    if (encodeOverridden) {
+      writer.write(encode(value));
+    } else {
+      escape(value, writer);
+    }
+  }
+
+  private static void escape(String value, Writer writer) throws IOException {
+    int length = value.length();
     int position = 0;
+    int i;
+    while ((i = firstEscape(value, position)) != -1) {
+      if (i > position) {
+        writer.write(value, position, i - position);
+      }
+      writer.write(ESCAPES[value.charAt(i)]);
+      position = i + 1;
+    }
+    if (position == 0) {
+      writer.write(value);
+    } else if (position < length) {
+      writer.write(value, position, length - position);
+    }
+  }
+
+  private static int firstEscape(String value, int from) {
     int length = value.length();
-    for (int i = 0; i < length; i++) {
+    for (int i = from; i < length; i++) {
       char c = value.charAt(i);
-      switch (c) {
-        case '&':
-          if (!escapedPattern.matcher(value.substring(i, length)).find()) {
-            sb.append(value, position, i);
-            position = i + 1;
-            sb.append("&amp;");
-          } else {
-            if (position != 0) {
-              sb.append(value, position, i);
-              position = i + 1;
-              sb.append("&");
-            }
-          }
-          break;
-        case '\\':
-          sb.append(value, position, i);
-          position = i + 1;
-          sb.append("\\\\");
-          break;
-        case '"':
-          sb.append(value, position, i);
-          position = i + 1;
-          sb.append("&quot;");
-          break;
-        case '<':
-          sb.append(value, position, i);
-          position = i + 1;
-          sb.append("&lt;");
-          break;
-        case '>':
-          sb.append(value, position, i);
-          position = i + 1;
-          sb.append("&gt;");
-          break;
-        case '\n':
-          sb.append(value, position, i);
-          position = i + 1;
-          sb.append("&#10;");
-          break;
+      if (c < 128 && ESCAPES[c] != null && (c != '&' || !isEntity(value, i + 1, length))) {
+        return i;
       }
     }
-    if (position == 0) {
-      return value;
-    } else {
-      sb.append(value, position, value.length());
-      return sb.toString();
+    return -1;
+  }
+
+  // Whether an ampersand is followed by a word and a semicolon, like &amp;
+  private static boolean isEntity(String value, int start, int length) {
+    for (int i = start; i < length; i++) {
+      char c = value.charAt(i);
+      if (c == ';') {
+        return i > start;
+      }
+      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_')) {
+        return false;
+      }
     }
+    return false;
   }
 }
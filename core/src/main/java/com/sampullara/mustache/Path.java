@@ -0,0 +1,87 @@
+package com.sampullara.mustache;
+
+/**
+ * A variable name split into its dotted components once, when the template is compiled. Each
+ * place in a template that looks up a name has its own path which remembers the accessors
+ * that resolved each component for the last few classes it has seen there.
+ * <p/>
+ * The depth of the scope that resolved the first component is not remembered. A nearer scope
+ * can hold the name in a later render and has to win, so every nearer scope is still asked.
+ * Those misses are cheap because a class without the name is remembered here with
+ * {@link DefaultObjectHandler#NOTHING} like any other accessor.
+ */
+public final class Path {
+  // Classes remembered per component, after that the shared cache is used
+  private static final int WAYS = 4;
+
+  private final String name;
+  private final String[] components;
+  private final Entry[] entries;
+
+  private static final class Entry {
+    final Class type;
+    final DefaultObjectHandler.Accessor accessor;
+
+    Entry(Class type, DefaultObjectHandler.Accessor accessor) {
+      this.type = type;
+      this.accessor = accessor;
+    }
+  }
+
+  public Path(String name) {
+    this.name = name;
+    components = split(name);
+    entries = new Entry[components.length * WAYS];
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String[] getComponents() {
+    return components;
+  }
+
+  /**
+   * The accessor for a component of the path on a class.
+   */
+  DefaultObjectHandler.Accessor getAccessor(int component, Class type) {
+    int start = component * WAYS;
+    int i = start;
+    for (int end = start + WAYS; i < end; i++) {
+      Entry entry = entries[i];
+      if (entry == null) {
+        break;
+      }
+      if (entry.type == type) {
+        return entry.accessor;
+      }
+    }
+    DefaultObjectHandler.Accessor accessor = DefaultObjectHandler.getAccessor(type, components[component]);
+    if (i < start + WAYS) {
+      // Racing threads may both remember it, that only costs a slot
+      entries[i] = new Entry(type, accessor);
+    }
+    return accessor;
+  }
+
+  private static String[] split(String s) {
+    int count = 1;
+    for (int i = s.indexOf('.'); i != -1; i = s.indexOf('.', i + 1)) {
+      count++;
+    }
+    String[] split = new String[count];
+    int position = 0;
+    for (int i = 0; i < count - 1; i++) {
+      int found = s.indexOf('.', position);
+      split[i] = s.substring(position, found);
+      position = found + 1;
+    }
+    split[count - 1] = count == 1 ? s : s.substring(position);
+    return split;
+  }
+
+  public String toString() {
+    return name;
+  }
+}
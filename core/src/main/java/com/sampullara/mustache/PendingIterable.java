@@ -0,0 +1,19 @@
+package com.sampullara.mustache;
+
+import java.util.concurrent.Future;
+
+/**
+ * The scopes of a section whose value is a future that hasn't completed yet. Iterating
+ * waits for the value, parallel writers can instead render the section once it arrives.
+ */
+public abstract class PendingIterable implements Iterable<Scope> {
+  private final Future pending;
+
+  public PendingIterable(Future pending) {
+    this.pending = pending;
+  }
+
+  public Future getPending() {
+    return pending;
+  }
+}
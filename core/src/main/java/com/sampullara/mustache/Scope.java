@@ -1,6 +1,7 @@
 package com.sampullara.mustache;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -9,6 +10,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
@@ -31,6 +33,8 @@ public class Scope extends HashMap<Object, Object> {
 
   private Object parent;
   private Scope parentScope;
+  // Values already looked up in this render, shared with the scopes made from this one
+  private Memo memo;
   private static Logger logger = Logger.getLogger(Mustache.class.getName());
 
   private static ObjectHandler defaultObjectHandler = new DefaultObjectHandler();
@@ -44,6 +48,7 @@ public class Scope extends HashMap<Object, Object> {
     if (parent instanceof Scope) {
       this.parentScope = (Scope) parent;
       objectHandler = parentScope.objectHandler;
+      memo = parentScope.memo;
     } else {
       this.parent = parent;
     }
@@ -52,6 +57,7 @@ public class Scope extends HashMap<Object, Object> {
   public Scope(Scope parentScope) {
     this.parentScope = parentScope;
     objectHandler = parentScope.objectHandler;
+    memo = parentScope.memo;
   }
 
   public Scope(Object parent, Scope parentScope) {
@@ -71,6 +77,20 @@ public class Scope extends HashMap<Object, Object> {
     return objectHandler;
   }
 
+  /**
+   * Remember the values looked up with the default object handler while rendering with this
+   * scope and the scopes made from it.
+   *
+   * @param memo a new memo for each render or null to stop remembering
+   */
+  public void setMemo(Memo memo) {
+    this.memo = memo;
+  }
+
+  public Memo getMemo() {
+    return memo;
+  }
+
   public Scope getParentScope() {
     return parentScope;
   }
@@ -93,6 +113,66 @@ public class Scope extends HashMap<Object, Object> {
     }
   }
 
+  /**
+   * Get the value of a path that was split when the template was compiled. When the default
+   * object handler is in use the accessors are looked up in the inline cache of the path.
+   *
+   * @param path
+   * @return the value or null if there isn't one
+   */
+  public Object get(Path path) {
+    long start = 0;
+    if (Mustache.profile) {
+      start = System.nanoTime();
+    }
+    try {
+      return get(path, this);
+    } finally {
+      if (Mustache.profile) {
+        long diff = System.nanoTime() - start;
+        Average newaverage = new Average();
+        Average average = profile.putIfAbsent(path.getName(), newaverage);
+        (average == null ? newaverage : average).increment(diff);
+      }
+    }
+  }
+
+  private Object get(Path path, Scope scope) {
+    String[] components = path.getComponents();
+    Object value = localGet(scope, components[0], path);
+    if (value == null || value == NULL) {
+      return null;
+    }
+    // Methods taking a scope get the one around the value before the current one, it
+    // is only created if there is such a method
+    Object outer = null;
+    Scope outerScope = this;
+    for (int i = 1; i < components.length; i++) {
+      String component = components[i];
+      Object next;
+      if (value instanceof Scope) {
+        if (outerScope == null) {
+          outerScope = new Scope(outer);
+        }
+        next = ((Scope) value).localGet(outerScope, component);
+      } else if (defaultObjectHandler.getClass() == DefaultObjectHandler.class) {
+        next = ((DefaultObjectHandler) defaultObjectHandler).handleObject(value, outerScope, outer, path, i, memo);
+      } else {
+        if (outerScope == null) {
+          outerScope = new Scope(outer);
+        }
+        next = defaultObjectHandler.handleObject(value, outerScope, component);
+      }
+      if (next == null || next == NULL) {
+        return null;
+      }
+      outer = value;
+      outerScope = null;
+      value = next;
+    }
+    return value;
+  }
+
   public Object get(Object o, Scope scope) {
     String name = o.toString();
     Object value = null;
@@ -112,11 +192,118 @@ public class Scope extends HashMap<Object, Object> {
         }
         currentScope = current;
         current = new Scope(value);
+        current.memo = memo;
       }
     }
     return value;
   }
 
+  /**
+   * Look up the paths now so that the futures along them are started before the render
+   * reaches them. Fields are read and members declared to return a future are called, other
+   * methods are only looked through when their values are already in the memo. The values
+   * found are kept in the memo of this scope, without one nothing is done. Futures that
+   * haven't completed and collections stop the walk.
+   *
+   * @param paths
+   */
+  public void prefetch(Collection<Path> paths) {
+    if (memo == null || objectHandler.getClass() != DefaultObjectHandler.class) {
+      return;
+    }
+    DefaultObjectHandler handler = (DefaultObjectHandler) objectHandler;
+    for (Path path : paths) {
+      String name = path.getComponents()[0];
+      for (Scope s = this; s != null; s = s.parentScope) {
+        Object value = s.own(name);
+        if (value == null) {
+          if (s.parent == null || !handler.has(s.parent, path, 0)) {
+            continue;
+          }
+          value = handler.prefetch(s.parent, path, 0, memo);
+        }
+        if (value != null) {
+          prefetch(handler, value, path, 1);
+        }
+        // The nearest scope with the name is the one the render will use
+        break;
+      }
+    }
+  }
+
+  private void prefetch(DefaultObjectHandler handler, Object value, Path path, int component) {
+    if (component == path.getComponents().length) {
+      return;
+    }
+    if (value instanceof Future) {
+      Future future = (Future) value;
+      if (!future.isDone()) {
+        return;
+      }
+      try {
+        value = future.get();
+      } catch (Exception e) {
+        // The render will report it
+        return;
+      }
+    }
+    if (value != null && !(value instanceof Iterable) && !(value instanceof Scope)) {
+      Object next = handler.prefetch(value, path, component, memo);
+      if (next != null) {
+        prefetch(handler, next, path, component + 1);
+      }
+    }
+  }
+
+  /**
+   * Whether the object of this scope has a {@link Batch} method for any of the names.
+   *
+   * @param names
+   */
+  public boolean isBatched(Collection<String> names) {
+    if (parent == null || objectHandler.getClass() != DefaultObjectHandler.class) {
+      return false;
+    }
+    for (String name : names) {
+      if (DefaultObjectHandler.isBatched(parent.getClass(), name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Look up the values of the names that have a {@link Batch} method for the objects of the
+   * scopes with one call each. The values are kept in the memo of the first scope. Scopes
+   * without a memo are given one that only holds these values.
+   *
+   * @param scopes the scopes of the elements of a section, each a different scope
+   * @param names  the names the body of the section looks up
+   */
+  public static void batch(List<Scope> scopes, Collection<String> names) {
+    if (scopes.isEmpty()) {
+      return;
+    }
+    Scope first = scopes.get(0);
+    if (first.objectHandler.getClass() != DefaultObjectHandler.class) {
+      return;
+    }
+    Memo memo = first.memo == null ? new Memo(false) : first.memo;
+    List<Object> parents = new ArrayList<Object>(scopes.size());
+    for (Scope scope : scopes) {
+      if (scope.memo == null) {
+        scope.memo = memo;
+      }
+      if (scope.parent != null && scope.memo == memo) {
+        parents.add(scope.parent);
+      }
+    }
+    DefaultObjectHandler handler = (DefaultObjectHandler) first.objectHandler;
+    for (String name : names) {
+      handler.batch(parents, name, memo);
+    }
+  }
+
   private static final ConcurrentMap<String, Average> profile = Mustache.profile ? new ConcurrentHashMap<String, Average>() : null;
 
   private static class Average implements Comparable<Average> {
@@ -170,11 +357,21 @@ public class Scope extends HashMap<Object, Object> {
     }
   }
 
+  // Values held by this scope itself
+  Object own(String name) {
+    return super.get(name);
+  }
+
   private Object localGet(Scope scope, String name) {
-    Object v = super.get(name);
+    Object v = own(name);
     if (v == null) {
       if (parent != null) {
-        v = objectHandler.handleObject(parent, scope, name);
+        if (objectHandler.getClass() == DefaultObjectHandler.class) {
+          Memo memo = scope == null ? this.memo : scope.memo;
+          v = ((DefaultObjectHandler) objectHandler).handleObject(parent, scope, name, memo);
+        } else {
+          v = objectHandler.handleObject(parent, scope, name);
+        }
       }
     }
     if (v == null) {
@@ -185,10 +382,33 @@ public class Scope extends HashMap<Object, Object> {
     return v;
   }
 
+  private Object localGet(Scope scope, String name, Path path) {
+    Object v = own(name);
+    if (v == null) {
+      if (parent != null) {
+        if (objectHandler.getClass() == DefaultObjectHandler.class) {
+          v = ((DefaultObjectHandler) objectHandler).handleObject(parent, scope, null, path, 0, scope.memo);
+        } else {
+          v = objectHandler.handleObject(parent, scope, name);
+        }
+      }
+    }
+    if (v == null) {
+      if (parentScope != null) {
+        v = parentScope.localGet(scope, name, path);
+      }
+    }
+    return v;
+  }
+
   public Object getParent() {
     return parent;
   }
 
+  void setParent(Object parent) {
+    this.parent = parent;
+  }
+
   private static Iterable<String> split(String s) {
     List<String> split = null;
     int position = 0;
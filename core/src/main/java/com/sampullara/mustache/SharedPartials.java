@@ -0,0 +1,14 @@
+package com.sampullara.mustache;
+
+/**
+ * Implemented by a {@link MustacheJava} that keeps one compiled copy of each partial for every
+ * template that includes it. Templates created by one that doesn't compile their partials
+ * with parseFile each time they are found.
+ */
+public interface SharedPartials {
+  /**
+   * Partials are shared by every template that includes them, compiled the first time
+   * one of them is executed.
+   */
+  Mustache parsePartial(String path) throws MustacheException;
+}
@@ -0,0 +1,17 @@
+package com.sampullara.mustache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose objects are used as the scope of templates. With the processor module
+ * on the annotation processor path a {@link GeneratedObjectHandler} is generated for the class
+ * that reads its fields and calls its methods directly. The default object handler uses it
+ * in place of reflection when it finds it, subclasses are still looked up with reflection.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface TemplateContext {
+}
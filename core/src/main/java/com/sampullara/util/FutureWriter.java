@@ -9,7 +9,14 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.sampullara.mustache.Mustache;
 import com.sampullara.mustache.MustacheTrace;
 
@@ -17,13 +24,19 @@ import com.sampullara.mustache.MustacheTrace;
  * This class sit in front of a writer and doesn't flush until Done is called on it.  Until then it queues up
  * writes that may not even be completed yet.  They are flushed out in the order they are enqueued.
  * <p/>
+ * In parallel mode the output that is ready streams to the underlying writer as the work completes,
+ * without waiting for flush. Whenever the work at the head of the queue completes, it and everything
+ * after it that is also complete is written out, either by the thread that completed it or by the
+ * rendering thread as it enqueues more work. Flush waits for the rest, flushAsync instead returns
+ * a future that completes once the last of it has been written.
+ * <p/>
  * User: sam
  * Date: May 6, 2010
  * Time: 2:44:42 PM
  */
 public class FutureWriter extends Writer {
 
-  private AppendableCallable last;
+  private TextSegment last;
   private ConcurrentLinkedQueue<Future<Object>> ordered = new ConcurrentLinkedQueue<Future<Object>>();
   private static ExecutorService des;
   private ExecutorService es;
@@ -31,10 +44,37 @@ public class FutureWriter extends Writer {
   private Writer writer;
   private boolean closed = false;
 
+  // Only one thread writes to the underlying writer at a time
+  private final ReentrantLock draining = new ReentrantLock();
+  private final AtomicBoolean pending = new AtomicBoolean();
+  private final Runnable drainer = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+  // The incomplete future we will be called back from, guarded by draining
+  private Future listening;
+  // Written since the underlying writer was last flushed, guarded by draining
+  private boolean dirty;
+  private volatile Exception failure;
+  // Completed once everything has been written, set by flushAsync
+  private volatile SettableFuture<Object> flushed;
+
+  private final long created = System.nanoTime();
+  private volatile long firstByte;
+
   public static void setParallel() {
     setParallel(new MustacheExecutor());
   }
 
+  /**
+   * Run every section on a thread of its own, a virtual thread when the JVM has them.
+   */
+  public static void setParallelPerTask() {
+    setParallel(MustacheExecutor.perTask());
+  }
+
   public static void setParallel(ExecutorService es) {
     ExecutorService old = FutureWriter.des;
     // Switch to the new one
@@ -66,6 +106,23 @@ public class FutureWriter extends Writer {
     }
   }
 
+  /**
+   * How long after this writer was created its first output reached the underlying writer.
+   *
+   * @param unit
+   * @return the time to first byte or -1 if nothing has been written yet
+   */
+  public long getTimeToFirstByte(TimeUnit unit) {
+    long first = firstByte;
+    return first == 0 ? -1 : unit.convert(first - created, TimeUnit.NANOSECONDS);
+  }
+
+  private void written() {
+    if (firstByte == 0) {
+      firstByte = System.nanoTime();
+    }
+  }
+
   /**
    * Optimize for the degenerate case of a set of strings being appended to the writer.
    *
@@ -76,29 +133,24 @@ public class FutureWriter extends Writer {
     if (closed) {
       throw new IOException("closed");
     }
-    if (isParallel()) {
-      if (last != null) {
-        last.append(cs);
+    if (cs != null) {
+      if (isParallel()) {
+        if (last != null) {
+          last.sb.append(cs);
+        } else {
+          enqueue(new TextSegment(new StringBuilder(cs)));
+        }
       } else {
-        AppendableCallable call = new AppendableCallable(cs);
-        enqueue(call);
-        last = call;
-      }
-    } else {
-      if (cs != null) {
         writer.write(cs.toString());
+        written();
       }
     }
   }
 
   public void enqueue(Callable<Object> callable) throws IOException {
     if (isParallel()) {
-      Future<Object> future;
-      if (es == null) {
-        future = new ImmediateFuture<Object>(callable);
-      } else {
-        future = es.submit(callable);
-      }
+      ListenableFutureTask<Object> future = new ListenableFutureTask<Object>(callable);
+      es.execute(future);
       enqueue(future);
     } else {
       try {
@@ -109,13 +161,19 @@ public class FutureWriter extends Writer {
     }
   }
 
-  public void enqueue(Future<Object> future) throws IOException {    
+  public void enqueue(Future<Object> future) throws IOException {
     if (closed) {
       throw new IOException("closed");
     }
     if (isParallel()) {
-      last = null;
+      seal();
       ordered.add(future);
+      if (future instanceof TextSegment) {
+        last = (TextSegment) future;
+      } else if (writer != null) {
+        // Nested writers are drained by the writer they are written to
+        drain();
+      }
     } else {
       try {
         write(future);
@@ -129,55 +187,168 @@ public class FutureWriter extends Writer {
     return es != null;
   }
 
-  private static class AppendableCallable implements Appendable, Callable<Object> {
-    StringBuilder sb;
-
-    AppendableCallable(CharSequence cs) {
-      sb = new StringBuilder(cs);
-    }
+  /**
+   * Text is collected in place until something else is enqueued after it. Until then it
+   * isn't done so that it won't be written while it is still growing.
+   */
+  private static class TextSegment implements Future<Object> {
+    final StringBuilder sb;
+    volatile boolean sealed;
 
-    public AppendableCallable(char[] chars) {
-      sb = new StringBuilder().append(chars);
+    TextSegment(StringBuilder sb) {
+      this.sb = sb;
     }
 
-    public AppendableCallable(char[] chars, int offset, int len) {
-      sb = new StringBuilder().append(chars, offset, len);
+    @Override
+    public boolean cancel(boolean b) {
+      return false;
     }
 
     @Override
-    public Appendable append(CharSequence cs) {
-      sb.append(cs);
-      return this;
+    public boolean isCancelled() {
+      return false;
     }
 
     @Override
-    public Appendable append(CharSequence charSequence, int i, int i1) throws IOException {
-      sb.append(charSequence, i, i1);
-      return this;
+    public boolean isDone() {
+      return sealed;
     }
 
     @Override
-    public Appendable append(char c) throws IOException {
-      sb.append(String.valueOf(c));
-      return this;
+    public Object get() {
+      return sb;
     }
 
     @Override
-    public Object call() throws Exception {
+    public Object get(long timeout, TimeUnit unit) {
       return sb;
     }
+  }
 
-    public Appendable append(char[] chars) {
-      sb.append(chars);
-      return sb;
+  private void seal() {
+    if (last != null) {
+      last.sealed = true;
+      last = null;
     }
+  }
 
-    public Appendable append(char[] chars, int offset, int len) {
-      sb.append(chars, offset, len);
-      return sb;
+  /**
+   * Write whatever is ready without blocking. Called from the rendering thread and from the
+   * threads that complete the work we are waiting on.
+   */
+  private void drain() {
+    pending.set(true);
+    if (draining.isHeldByCurrentThread()) {
+      // Completed while we were registering for it, the current drain will go around again
+      return;
+    }
+    boolean done = false;
+    while (pending.get() && draining.tryLock()) {
+      try {
+        pending.set(false);
+        if (failure == null) {
+          if (drainTo(writer, this, false)) {
+            done = flushed != null;
+            if (done) {
+              writer.flush();
+              dirty = false;
+            }
+          } else if (dirty) {
+            // Push what we have to the client while we wait for the rest
+            writer.flush();
+            dirty = false;
+          }
+        }
+      } catch (Exception e) {
+        failure = e;
+      } finally {
+        draining.unlock();
+      }
+    }
+    // Outside of the lock so that listeners are free to write more
+    SettableFuture<Object> future = flushed;
+    if (future != null) {
+      if (failure != null) {
+        future.setException(failure);
+      } else if (done) {
+        future.set(null);
+      }
     }
   }
 
+  /**
+   * Write the completed work at the front of the queue.
+   *
+   * @return true if everything in the queue was written
+   */
+  private boolean drainTo(Writer target, FutureWriter root, boolean block) throws Exception {
+    Future<Object> head;
+    while ((head = ordered.peek()) != null) {
+      if (!writeTo(head, target, root, block)) {
+        return false;
+      }
+      ordered.poll();
+    }
+    return true;
+  }
+
+  private static boolean writeTo(Object o, Writer target, FutureWriter root, boolean block) throws Exception {
+    if (o instanceof Future) {
+      Future future = (Future) o;
+      if (!future.isDone()) {
+        if (!block) {
+          root.listen(future);
+          return false;
+        }
+        root.await(future);
+      }
+      return writeTo(future.get(), target, root, block);
+    } else if (o instanceof FutureWriter) {
+      // Its work has completed so nothing more will be added to it
+      FutureWriter fw = (FutureWriter) o;
+      fw.seal();
+      fw.setWriter(target);
+      return fw.drainTo(target, root, block);
+    } else if (o != null) {
+      target.write(o.toString());
+      root.dirty = true;
+      root.written();
+    }
+    return true;
+  }
+
+  private void listen(Future future) {
+    if (future != listening) {
+      if (future instanceof ListenableFuture) {
+        listening = future;
+        ((ListenableFuture) future).addListener(drainer, MoreExecutors.sameThreadExecutor());
+      } else if (flushed != null && !(future instanceof TextSegment)) {
+        // Nobody will come back to drain the rest, wait for it on another thread
+        listening = future;
+        Futures.makeListenable(future).addListener(drainer, MoreExecutors.sameThreadExecutor());
+      }
+    }
+  }
+
+  private void await(Future future) throws Exception {
+    try {
+      future.get(50, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException te) {
+      MustacheTrace.Event flushEvent = null;
+      if (Mustache.trace) {
+        flushEvent = MustacheTrace.addEvent("flush_wait", "FutureWriter");
+      }
+      if (dirty) {
+        writer.flush();
+        dirty = false;
+      }
+      future.get();
+      if (flushEvent != null) {
+        flushEvent.start -= 50;
+        flushEvent.end();
+      }
+    }
+  }
 
   @Override
   public void flush() throws IOException {
@@ -187,36 +358,46 @@ public class FutureWriter extends Writer {
   public void flush(boolean top) throws IOException {
     try {
       if (isParallel()) {
-        for (Future<Object> work : ordered) {
-          Object o;
-          try {
-            o = work.get(50, TimeUnit.MILLISECONDS);
-          } catch (TimeoutException te) {
-            MustacheTrace.Event flushEvent = null;
-            if (top && Mustache.trace) {
-              flushEvent = MustacheTrace.addEvent("flush_wait", "FutureWriter");
-            }
-            writer.flush();
-            o = work.get();
-            if (flushEvent != null) {
-              flushEvent.start -= 50;
-              flushEvent.end();
-            }
+        seal();
+        draining.lock();
+        try {
+          if (failure != null) {
+            throw failure;
           }
-          write(o);
+          drainTo(writer, this, true);
+        } finally {
+          draining.unlock();
         }
       }
       if (top) {
         writer.flush();
       }
-      // Reset
-      ordered.clear();
-      last = null;
     } catch (Exception e) {
       throw new IOException("Failed to flush", e);
     }
   }
 
+  /**
+   * Write everything that has been enqueued without waiting for it. Nothing more may be written
+   * to this writer afterwards.
+   *
+   * @return a future that completes once everything has been written and the writer flushed
+   */
+  public ListenableFuture<Object> flushAsync() {
+    if (!isParallel()) {
+      try {
+        flush();
+        return Futures.immediateFuture(null);
+      } catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+    }
+    flushed = SettableFuture.create();
+    seal();
+    drain();
+    return flushed;
+  }
+
   private void write(Object o) throws IOException, InterruptedException, ExecutionException {
     if (o instanceof FutureWriter) {
       FutureWriter fw = (FutureWriter) o;
@@ -227,10 +408,12 @@ public class FutureWriter extends Writer {
       Object result = future.get();
       if (result != null) {
         writer.write(result.toString());
+        written();
       }
     } else {
       if (o != null) {
         writer.write(o.toString());
+        written();
       }
     }
   }
@@ -254,36 +437,58 @@ public class FutureWriter extends Writer {
     }
     if (isParallel()) {
       if (last != null) {
-        last.append(chars, i, i1);
+        last.sb.append(chars, i, i1);
       } else {
-        AppendableCallable call = new AppendableCallable(chars, i, i1);
-        enqueue(call);
-        last = call;
-      }     
+        enqueue(new TextSegment(new StringBuilder(i1).append(chars, i, i1)));
+      }
     } else {
       writer.write(chars, i, i1);
+      written();
     }
   }
 
   @Override
   public void write(final String s, final int i, final int i1) throws IOException {
-    enqueue(s.substring(i, i1));
-  }
-
-  @Override
-  public void write(final char[] chars) throws IOException {
     if (closed) {
       throw new IOException("closed");
     }
-    if (last != null) {
-      last.append(chars);
+    if (isParallel()) {
+      if (last != null) {
+        last.sb.append(s, i, i + i1);
+      } else {
+        enqueue(new TextSegment(new StringBuilder(i1).append(s, i, i + i1)));
+      }
     } else {
-      AppendableCallable call = new AppendableCallable(chars);
-      enqueue(call);
-      last = call;
+      writer.write(s, i, i1);
+      written();
     }
   }
 
+  /**
+   * Write text along with its UTF-8 encoding. The bytes are used when they can go straight
+   * to a Utf8Writer, otherwise the text is written as usual.
+   *
+   * @param s
+   * @param utf8
+   * @throws IOException
+   */
+  public void write(final String s, final byte[] utf8) throws IOException {
+    if (!isParallel() && writer instanceof Utf8Writer) {
+      if (closed) {
+        throw new IOException("closed");
+      }
+      ((Utf8Writer) writer).writeEncoded(utf8);
+      written();
+    } else {
+      enqueue(s);
+    }
+  }
+
+  @Override
+  public void write(final char[] chars) throws IOException {
+    write(chars, 0, chars.length);
+  }
+
   @Override
   public void write(final String s) throws IOException {
     enqueue(s);
@@ -1,28 +1,62 @@
 package com.sampullara.util;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 /**
  * A reasonably configured Executor for Mustache
  */
 public class MustacheExecutor extends ThreadPoolExecutor {
+  private static Logger logger = Logger.getLogger(MustacheExecutor.class.getName());
+
+  // The most platform threads perTask starts without virtual threads
+  private static final int MAX_THREADS = 512;
+
   public MustacheExecutor() {
     super(10, 100, 60, TimeUnit.SECONDS,
             new ArrayBlockingQueue<Runnable>(10), new ThreadPoolExecutor.CallerRunsPolicy());
-    setThreadFactory(new ThreadFactory() {
-      int i = 0;
+    setThreadFactory(threadFactory());
+  }
+
+  /**
+   * An executor that runs every task on a thread of its own so that tasks blocked on backend
+   * futures never hold up other sections or fall back to the rendering thread. On JVMs with
+   * virtual threads each task gets a virtual thread. Otherwise tasks run on up to
+   * {@link #MAX_THREADS} platform threads and wait in a queue for one when they are all busy.
+   */
+  public static ExecutorService perTask() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (Exception e) {
+      logger.info("Virtual threads are not available, running tasks on at most " + MAX_THREADS +
+              " platform threads");
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), threadFactory());
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  }
+
+  private static ThreadFactory threadFactory() {
+    return new ThreadFactory() {
+      AtomicInteger i = new AtomicInteger();
 
       @Override
       public Thread newThread(Runnable runnable) {
         Thread thread = new Thread(runnable);
         thread.setDaemon(true);
-        thread.setName("Mustache-FutureWriter-" + i++);
+        thread.setName("Mustache-FutureWriter-" + i.getAndIncrement());
         return thread;
       }
-    });
-
+    };
   }
 }
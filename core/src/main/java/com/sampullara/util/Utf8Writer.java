@@ -0,0 +1,135 @@
+package com.sampullara.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Encodes characters as UTF-8 straight into a buffer in front of an output stream. Text that
+ * was encoded ahead of time can be written as bytes without being encoded again.
+ */
+public class Utf8Writer extends Writer {
+  private final OutputStream os;
+  private final byte[] buffer;
+  private int count;
+  // A high surrogate waiting for the rest of its pair
+  private char high;
+
+  public Utf8Writer(OutputStream os) {
+    this(os, 8192);
+  }
+
+  public Utf8Writer(OutputStream os, int size) {
+    this.os = os;
+    buffer = new byte[size];
+  }
+
+  /**
+   * Write text that is already encoded as UTF-8.
+   */
+  public void writeEncoded(byte[] bytes, int offset, int length) throws IOException {
+    if (high != 0) {
+      malformed();
+    }
+    if (length > buffer.length - count) {
+      drain();
+      if (length > buffer.length) {
+        os.write(bytes, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, offset, buffer, count, length);
+    count += length;
+  }
+
+  public void writeEncoded(byte[] bytes) throws IOException {
+    writeEncoded(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    encode((char) c);
+  }
+
+  @Override
+  public void write(char[] chars, int offset, int length) throws IOException {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      encode(chars[i]);
+    }
+  }
+
+  @Override
+  public void write(String s, int offset, int length) throws IOException {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      encode(s.charAt(i));
+    }
+  }
+
+  @Override
+  public void write(String s) throws IOException {
+    write(s, 0, s.length());
+  }
+
+  private void encode(char c) throws IOException {
+    if (count > buffer.length - 4) {
+      drain();
+    }
+    if (high != 0) {
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(high, c);
+        high = 0;
+        buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+        return;
+      }
+      malformed();
+    }
+    if (c < 0x80) {
+      buffer[count++] = (byte) c;
+    } else if (c < 0x800) {
+      buffer[count++] = (byte) (0xC0 | (c >> 6));
+      buffer[count++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c)) {
+      high = c;
+    } else if (Character.isLowSurrogate(c)) {
+      buffer[count++] = '?';
+    } else {
+      buffer[count++] = (byte) (0xE0 | (c >> 12));
+      buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buffer[count++] = (byte) (0x80 | (c & 0x3F));
+    }
+  }
+
+  // Unpaired surrogates are replaced the same way String.getBytes does
+  private void malformed() throws IOException {
+    if (count == buffer.length) {
+      drain();
+    }
+    high = 0;
+    buffer[count++] = '?';
+  }
+
+  private void drain() throws IOException {
+    if (count > 0) {
+      os.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+    os.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (high != 0) {
+      malformed();
+    }
+    flush();
+    os.close();
+  }
+}
@@ -60,6 +60,7 @@ public class Handlebar {
     }
     Scope.setDefaultObjectHandler(new JsonObjectHandler());
     final MustacheBuilder mc = new MustacheBuilder(new File("."));
+    mc.setCheckInterval(0);
     final JsonFactory jf = new MappingJsonFactory();
     Handler handler = new AbstractHandler() {
       public void handle(String s, Request r, HttpServletRequest req, HttpServletResponse res) throws IOException, ServletException {
@@ -73,7 +74,7 @@ public class Handlebar {
           // Handle like a template
           String filename = pathInfo.endsWith("/") ? pathInfo + "index.html" : pathInfo.substring(1);
           try {
-            Mustache mustache = mc.parseFile(filename);
+            Mustache mustache = mc.parseCached(filename);
             FutureWriter fw = new FutureWriter(res.getWriter());
             File file = new File(mocks, base + ".json");
             res.setStatus(HttpServletResponse.SC_OK);
@@ -0,0 +1,298 @@
+package com.sampullara.mustache.processor;
+
+import com.sampullara.mustache.Batch;
+import com.sampullara.mustache.GeneratedObjectHandler;
+import com.sampullara.mustache.TemplateContext;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a {@link GeneratedObjectHandler} for each class annotated with
+ * {@link TemplateContext}. The handler finds names the same way the default object handler
+ * does with reflection: fields, methods, methods taking a Scope, Batch methods and then bean
+ * properties, walking up the superclasses and skipping private members. It returns accessors
+ * that read the fields and call the methods directly. Members it can't call from the package
+ * of the class and Batch methods are left to reflection.
+ */
+@SupportedAnnotationTypes("com.sampullara.mustache.TemplateContext")
+public class ObjectHandlerProcessor extends AbstractProcessor {
+  private static final String SCOPE = "com.sampullara.mustache.Scope";
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (Element element : roundEnv.getElementsAnnotatedWith(TemplateContext.class)) {
+      TypeElement type = (TypeElement) element;
+      String problem = check(type);
+      if (problem != null) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, problem, type);
+        continue;
+      }
+      try {
+        generate(type);
+      } catch (IOException e) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                "Failed to write object handler: " + e.getMessage(), type);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Why the generated handler couldn't use the class or null if it can.
+   */
+  private String check(TypeElement type) {
+    if (type.getKind() != ElementKind.CLASS && type.getKind() != ElementKind.ENUM) {
+      return "@TemplateContext can only be used on classes";
+    }
+    for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+      TypeElement t = (TypeElement) e;
+      if (t.getNestingKind() == NestingKind.LOCAL || t.getNestingKind() == NestingKind.ANONYMOUS) {
+        return "@TemplateContext classes can't be local or anonymous";
+      }
+      if (t.getModifiers().contains(Modifier.PRIVATE)) {
+        return "@TemplateContext classes and the classes they are nested in can't be private";
+      }
+    }
+    return null;
+  }
+
+  private void generate(TypeElement type) throws IOException {
+    String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+    String simpleName = (packageName.length() == 0 ? binaryName : binaryName.substring(packageName.length() + 1))
+            + GeneratedObjectHandler.SUFFIX;
+    String qualifiedName = packageName.length() == 0 ? simpleName : packageName + "." + simpleName;
+    Members members = new Members(type, packageName);
+
+    PrintWriter pw = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter());
+    try {
+      if (packageName.length() > 0) {
+        pw.println("package " + packageName + ";");
+        pw.println();
+      }
+      pw.println("/**");
+      pw.println(" * Generated by " + getClass().getName() + " from " + type.getQualifiedName() + ", do not edit.");
+      pw.println(" */");
+      pw.println("public final class " + simpleName + " extends " + GeneratedObjectHandler.class.getName() + " {");
+      pw.println("  @Override");
+      pw.println("  protected Accessor accessorFor(String name) {");
+      for (String line : members.lines) {
+        pw.println("    " + line);
+      }
+      pw.println("    return NOTHING;");
+      pw.println("  }");
+      pw.println("}");
+    } finally {
+      pw.close();
+    }
+  }
+
+  /**
+   * The lookups of the generated handler in the order the default object handler tries them.
+   */
+  private class Members {
+    final List<String> lines = new ArrayList<String>();
+    private final String packageName;
+    private final String cast;
+    // The first member of each kind found walking up from the class, private ones included
+    // because they hide the ones above them
+    private final Map<String, VariableElement> fields = new LinkedHashMap<String, VariableElement>();
+    private final Map<String, ExecutableElement> methods = new LinkedHashMap<String, ExecutableElement>();
+    private final Map<String, ExecutableElement> scopeMethods = new LinkedHashMap<String, ExecutableElement>();
+    private final Map<String, ExecutableElement> listMethods = new LinkedHashMap<String, ExecutableElement>();
+
+    Members(TypeElement type, String packageName) {
+      this.packageName = packageName;
+      cast = erasure(type.asType());
+      for (TypeElement t = type; t != null; t = superclass(t)) {
+        for (Element member : t.getEnclosedElements()) {
+          String name = member.getSimpleName().toString();
+          if (member.getKind() == ElementKind.FIELD || member.getKind() == ElementKind.ENUM_CONSTANT) {
+            if (!fields.containsKey(name)) fields.put(name, (VariableElement) member);
+          } else if (member.getKind() == ElementKind.METHOD) {
+            ExecutableElement method = (ExecutableElement) member;
+            List<? extends VariableElement> parameters = method.getParameters();
+            Map<String, ExecutableElement> kind = null;
+            if (parameters.isEmpty()) {
+              kind = methods;
+            } else if (parameters.size() == 1) {
+              String parameter = erasure(parameters.get(0).asType());
+              if (parameter.equals(SCOPE)) {
+                kind = scopeMethods;
+              } else if (parameter.equals("java.util.List")) {
+                kind = listMethods;
+              }
+            }
+            if (kind != null && !kind.containsKey(name)) kind.put(name, method);
+          }
+        }
+      }
+      for (VariableElement field : fields.values()) {
+        if (!isPrivate(field)) {
+          String name = field.getSimpleName().toString();
+          lookup(names(name), field, value("FieldValueAccessor", field.asType(), target(field) + name));
+        }
+      }
+      for (ExecutableElement method : methods.values()) {
+        if (!isPrivate(method)) {
+          lookup(names(method.getSimpleName().toString()), method, call(method, "Accessor", ""));
+        }
+      }
+      for (ExecutableElement method : scopeMethods.values()) {
+        if (!isPrivate(method)) {
+          lookup(names(method.getSimpleName().toString()), method, call(method, "ScopeAccessor", "scope"));
+        }
+      }
+      for (ExecutableElement method : listMethods.values()) {
+        if (!isPrivate(method) && method.getModifiers().contains(Modifier.STATIC) &&
+                method.getAnnotation(Batch.class) != null) {
+          // The batches are loaded with reflection
+          lookup(names(method.getSimpleName().toString()), method, null);
+        }
+      }
+      for (String prefix : new String[]{"get", "is"}) {
+        for (ExecutableElement method : methods.values()) {
+          String name = method.getSimpleName().toString();
+          if (!isPrivate(method) && name.startsWith(prefix) && name.length() > prefix.length()) {
+            Set<String> names = property(name.substring(prefix.length()));
+            if (!names.isEmpty()) {
+              lookup(names, method, call(method, "Accessor", ""));
+            }
+          }
+        }
+      }
+    }
+
+    private TypeElement superclass(TypeElement t) {
+      TypeMirror superclass = t.getSuperclass();
+      if (superclass.getKind() != TypeKind.DECLARED) {
+        return null;
+      }
+      TypeElement element = (TypeElement) processingEnv.getTypeUtils().asElement(superclass);
+      return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+    }
+
+    private Set<String> names(String name) {
+      Set<String> names = new LinkedHashSet<String>();
+      names.add(name);
+      return names;
+    }
+
+    /**
+     * The names whose property is the rest of a getter's name. The default object handler
+     * capitalizes the first letter of the name to find the getter.
+     */
+    private Set<String> property(String rest) {
+      Set<String> names = new LinkedHashSet<String>();
+      String first = rest.substring(0, 1);
+      if (first.toUpperCase().equals(first)) {
+        names.add(rest);
+        String lower = first.toLowerCase();
+        if (lower.toUpperCase().equals(first)) {
+          names.add(lower + rest.substring(1));
+        }
+      }
+      return names;
+    }
+
+    /**
+     * Return the accessor when the name is one of the names, or null to use reflection when
+     * the member can't be used directly.
+     */
+    private void lookup(Set<String> names, Element member, List<String> accessor) {
+      StringBuilder condition = new StringBuilder();
+      for (String name : names) {
+        if (condition.length() > 0) condition.append(" || ");
+        condition.append("name.equals(\"").append(name).append("\")");
+      }
+      lines.add("if (" + condition + ") {");
+      if (accessor == null || !accessible(member)) {
+        lines.add("  return null;");
+      } else {
+        for (String line : accessor) {
+          lines.add("  " + line);
+        }
+      }
+      lines.add("}");
+    }
+
+    private List<String> call(ExecutableElement method, String accessor, String arguments) {
+      String expression = target(method) + method.getSimpleName() + "(" + arguments + ")";
+      TypeMirror returnType = method.getReturnType();
+      if (returnType.getKind() == TypeKind.VOID) {
+        return accessor(accessor, "void", expression + ";", "return nullValue;");
+      }
+      return value(accessor, returnType, expression);
+    }
+
+    private List<String> value(String accessor, TypeMirror type, String expression) {
+      return accessor(accessor, erasure(type), "Object value = " + expression + ";",
+              "return value == null ? nullValue : value;");
+    }
+
+    private List<String> accessor(String accessor, String type, String... body) {
+      List<String> lines = new ArrayList<String>();
+      lines.add("return new " + accessor + "(" + type + ".class) {");
+      lines.add("  @Override");
+      lines.add("  public Object get(Object parent, " + SCOPE + " scope) throws Exception {");
+      for (String line : body) {
+        lines.add("    " + line);
+      }
+      lines.add("  }");
+      lines.add("};");
+      return lines;
+    }
+
+    private String target(Element member) {
+      if (member.getModifiers().contains(Modifier.STATIC)) {
+        return cast + ".";
+      }
+      return "((" + cast + ") parent).";
+    }
+
+    private boolean isPrivate(Element member) {
+      return member.getModifiers().contains(Modifier.PRIVATE);
+    }
+
+    /**
+     * Whether the generated handler, in the package of the class, can use the member.
+     */
+    private boolean accessible(Element member) {
+      if (member.getModifiers().contains(Modifier.PUBLIC)) {
+        return true;
+      }
+      String declaredIn = processingEnv.getElementUtils().getPackageOf(member).getQualifiedName().toString();
+      return declaredIn.equals(packageName);
+    }
+
+    private String erasure(TypeMirror type) {
+      return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+  }
+}
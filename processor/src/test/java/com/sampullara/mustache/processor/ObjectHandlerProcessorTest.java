@@ -0,0 +1,69 @@
+package com.sampullara.mustache.processor;
+
+import com.sampullara.mustache.DefaultObjectHandler;
+import com.sampullara.mustache.GeneratedObjectHandler;
+import com.sampullara.mustache.Mustache;
+import com.sampullara.mustache.MustacheBuilder;
+import com.sampullara.mustache.MustacheException;
+import com.sampullara.mustache.Scope;
+import com.sampullara.mustache.TemplateContext;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The handlers generated for the context classes of these tests.
+ */
+public class ObjectHandlerProcessorTest {
+
+  static class Named {
+    String name = "Sam";
+  }
+
+  @TemplateContext
+  static class Person extends Named {
+    private String secret = "secret";
+    static final String kind = "person";
+
+    int age() {
+      return 40;
+    }
+
+    public String getTitle() {
+      return "Mr";
+    }
+
+    boolean isAdmin() {
+      return true;
+    }
+
+    String greeting(Scope scope) {
+      return "Hello " + scope.get("name");
+    }
+  }
+
+  // Exposes the accessors the default object handler resolves
+  static class Accessors extends DefaultObjectHandler {
+    static Class<?> of(Class aClass, String name) {
+      return getAccessor(aClass, name).getClass();
+    }
+  }
+
+  @Test
+  public void testGenerated() throws MustacheException, IOException, ClassNotFoundException {
+    Class<?> handler = Class.forName(Person.class.getName() + GeneratedObjectHandler.SUFFIX);
+    for (String name : new String[]{"name", "kind", "age", "title", "Title", "admin", "greeting"}) {
+      assertSame(name, handler, Accessors.of(Person.class, name).getEnclosingClass());
+    }
+    MustacheBuilder c = new MustacheBuilder();
+    Mustache m = c.parse("{{kind}}: {{name}}, {{age}}, {{title}}{{#admin}} admin{{/admin}}, {{greeting}}{{secret}}",
+            "person.html");
+    StringWriter sw = new StringWriter();
+    m.execute(sw, new Scope(new Person()));
+    assertEquals("person: Sam, 40, Mr admin, Hello Sam", sw.toString());
+  }
+}